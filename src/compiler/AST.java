@@ -33,6 +33,7 @@ public class AST {
 		final List<ParNode> parlist;
 		final List<DecNode> declist; 
 		final Node exp;
+		STentry entry; // entry of the function in the symbol table (the one referenced by its calls)
 
         FunNode(String i, TypeNode rt, List<ParNode> pl, List<DecNode> dl, Node e) {
 	    	id=i;
@@ -0,0 +1,88 @@
+package compiler;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import org.antlr.v4.runtime.*;
+
+/**
+ * Checks that svm.Assembler assembles as the parsers generated from the SVM grammars: every
+ * input is assembled by svm.Assembler, by svm.SVMParser, which must give the same code[], and
+ * by visualsvm.SVMParser, which must give the same sourceMap[] except for label operands (see
+ * svm.Assembler).
+ *
+ * Inputs are the .fool and .asm files given on the command line (the ones of the current
+ * directory if none); FOOL files are compiled first, with the default options, --no-fuse,
+ * --display and --no-opt. Inputs that do not compile are skipped.
+ * Exits with status 1 if any result differs.
+ */
+public class AssemblerCheck {
+
+	public static void main(String[] args) throws Exception {
+		List<String> files = new ArrayList<>(Arrays.asList(args));
+		if (files.isEmpty())
+			try (DirectoryStream<Path> dir = Files.newDirectoryStream(Paths.get("."), "*.{fool,asm}")) {
+				for (Path p : dir) files.add(p.toString());
+			}
+		Collections.sort(files);
+
+		PrintStream out = System.out;
+		Map<String,String> inputs = new LinkedHashMap<>();
+		for (String f : files) {
+			String source = new String(Files.readAllBytes(Paths.get(f)));
+			if (f.endsWith(".asm")) {
+				inputs.put(f, source);
+				continue;
+			}
+			String[] names = {"", " --no-fuse", " --display", " --no-opt"};
+			FoolCompiler[] compilers = {new FoolCompiler(), new FoolCompiler().withFusedInstructions(false),
+				new FoolCompiler().withDisplay(true), new FoolCompiler(false, false)};
+			for (int c = 0; c < compilers.length; c++) {
+				System.setOut(new PrintStream(OutputStream.nullOutputStream())); // compiler messages
+				try {
+					FoolCompiler.Result result = compilers[c].compile(source);
+					if (result.errors == 0) inputs.put(f + names[c], result.asm.toString());
+					else inputs.put(f + names[c], null);
+				} catch (RuntimeException e) {
+					inputs.put(f + names[c], null);
+				} finally {
+					System.setOut(out);
+				}
+			}
+		}
+
+		int checked = 0, differences = 0;
+		for (Map.Entry<String,String> in : inputs.entrySet()) {
+			if (in.getValue() == null) {
+				out.printf("%-32s skipped: does not compile%n", in.getKey());
+				continue;
+			}
+			String difference = difference(in.getValue());
+			if (difference != null) {
+				out.printf("%-32s differs: %s%n", in.getKey(), difference);
+				differences++;
+			}
+			checked++;
+		}
+		out.printf("%d programs assembled: %d differences%n", checked, differences);
+		if (differences > 0) System.exit(1);
+	}
+
+	// what differs between the results of the assemblers on the same text, null if nothing
+	private static String difference(String asm) {
+		svm.Assembler assembler = svm.Assembler.assemble(asm);
+		if (assembler.errors() > 0) return assembler.errors() + " errors"; // the grammars would fail on undefined labels
+		svm.SVMParser parser = new svm.SVMParser(new CommonTokenStream(new svm.SVMLexer(CharStreams.fromString(asm))));
+		parser.assembly();
+		visualsvm.SVMParser visualParser =
+			new visualsvm.SVMParser(new CommonTokenStream(new visualsvm.SVMLexer(CharStreams.fromString(asm))));
+		visualParser.assembly();
+		int[] code = assembler.code(), sourceMap = assembler.sourceMap();
+		if (!Arrays.equals(code, parser.code)) return "code";
+		for (int a = 0; a < code.length; a++) // the grammar leaves 0 for label operands
+			if (sourceMap[a] != visualParser.sourceMap[a]
+					&& !(visualParser.sourceMap[a] == 0 && a > 0 && sourceMap[a] == sourceMap[a - 1]))
+				return "sourceMap at address " + a;
+		return null;
+	}
+}
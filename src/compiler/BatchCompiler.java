@@ -0,0 +1,170 @@
+package compiler;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
+import org.antlr.v4.runtime.*;
+
+/**
+ * Compiles many FOOL files at once: the files given on the command line and the .fool files found
+ * (recursively) in the directories given, writing for each one the .asm file (unless --no-asm)
+ * and, with --obj, the .svmo object file, next to the source as Test does.
+ *
+ * Files are read by the main thread, one after the other, and each one is compiled and written
+ * as soon as it is read by a task of a work-stealing ForkJoinPool with --threads workers (all
+ * the processors by default), so reading overlaps with compilation. Compilations are
+ * independent (see FoolCompiler), so the generated files do not depend on the number of threads.
+ *
+ * The messages printed by the compiler for a file (its errors) are collected by the thread
+ * compiling it and printed at the end in the order of the files, followed by the report: files
+ * per second, errors and the --slowest=N files (10 by default). Only the times vary between runs.
+ * Compiler options are the ones of Test: --no-opt, --no-fuse, --display, --no-tco, --inline=N.
+ */
+public class BatchCompiler {
+
+	// outcome of the compilation of a file
+	private static class FileResult {
+		final Path path;
+		final int errors;       // -1 if the file could not be read, compiled or written
+		final int codeWords;
+		final long nanos;       // compilation and writing
+		final String messages;  // printed while compiling it
+
+		FileResult(Path path, int errors, int codeWords, long nanos, String messages) {
+			this.path = path; this.errors = errors; this.codeWords = codeWords; this.nanos = nanos; this.messages = messages;
+		}
+	}
+
+	// System.out and System.err of the threads compiling a file go to the buffer of that file
+	private static final ThreadLocal<ByteArrayOutputStream> captured = new ThreadLocal<>();
+
+	private static PrintStream routed(PrintStream original) {
+		return new PrintStream(new OutputStream() {
+			private OutputStream target() {
+				ByteArrayOutputStream buffer = captured.get();
+				return buffer != null ? buffer : original;
+			}
+
+			@Override
+			public void write(int b) throws IOException {
+				target().write(b);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				target().write(b, off, len);
+			}
+
+			@Override
+			public void flush() throws IOException {
+				target().flush();
+			}
+		}, true);
+	}
+
+	public static void main(String[] args) throws Exception {
+		int threads = Runtime.getRuntime().availableProcessors();
+		int slowest = 10;
+		boolean writeAsm = true, writeObj = false;
+		boolean optimize = true, fused = true, display = false, tailCalls = true;
+		int inlineSize = FoolCompiler.INLINE_SIZE;
+		List<String> inputs = new ArrayList<>();
+		for (String arg : args)
+			if (arg.startsWith("--threads=")) threads = Integer.parseInt(arg.substring("--threads=".length()));
+			else if (arg.startsWith("--slowest=")) slowest = Integer.parseInt(arg.substring("--slowest=".length()));
+			else if (arg.equals("--no-asm")) writeAsm = false;
+			else if (arg.equals("--obj")) writeObj = true;
+			else if (arg.equals("--no-opt")) optimize = false;
+			else if (arg.equals("--no-fuse")) fused = false;
+			else if (arg.equals("--display")) display = true;
+			else if (arg.equals("--no-tco")) tailCalls = false;
+			else if (arg.startsWith("--inline=")) inlineSize = Integer.parseInt(arg.substring("--inline=".length()));
+			else inputs.add(arg);
+		if (inputs.isEmpty()) inputs.add(".");
+
+		SortedSet<Path> files = new TreeSet<>(); // sorted, so that the order does not depend on the file system
+		for (String in : inputs) {
+			Path p = Paths.get(in);
+			if (Files.isDirectory(p))
+				try (Stream<Path> s = Files.walk(p)) {
+					s.filter(f -> f.toString().endsWith(".fool") && Files.isRegularFile(f)).forEach(f -> files.add(f.normalize()));
+				}
+			else files.add(p.normalize());
+		}
+
+		FoolCompiler compiler = new FoolCompiler(optimize, false).withFusedInstructions(fused).withDisplay(display)
+				.withTailCalls(tailCalls).withInlining(inlineSize);
+		PrintStream out = System.out, err = System.err;
+		System.setOut(routed(out));
+		System.setErr(routed(err));
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		List<Future<FileResult>> futures = new ArrayList<>();
+		List<FileResult> results = new ArrayList<>();
+		long start = System.nanoTime(), elapsed;
+		try {
+			for (Path file : files) {
+				String source;
+				try {
+					source = new String(Files.readAllBytes(file));
+				} catch (IOException e) {
+					futures.add(CompletableFuture.completedFuture(new FileResult(file, -1, 0, 0, "Cannot read "+file+": "+e+"\n")));
+					continue;
+				}
+				boolean asm = writeAsm, obj = writeObj;
+				futures.add(pool.submit(() -> compile(compiler, file, source, asm, obj)));
+			}
+			for (Future<FileResult> f : futures) results.add(f.get()); // compile reports any failure in its result
+			elapsed = System.nanoTime() - start;
+		} finally {
+			pool.shutdown();
+			System.setOut(out);
+			System.setErr(err);
+		}
+
+		int failed = 0, errors = 0;
+		long codeWords = 0;
+		for (FileResult r : results) {
+			out.print(r.messages);
+			if (r.errors != 0) {
+				out.println(r.path+": "+(r.errors < 0 ? "failed" : r.errors+" errors"));
+				failed++;
+				if (r.errors > 0) errors += r.errors;
+			}
+			codeWords += r.codeWords;
+		}
+		out.printf("Compiled %d files in %.3f s (%.1f files/s) on %d threads: %d with errors, %d errors in total, %d words of code%n",
+				results.size(), elapsed / 1e9, results.size() * 1e9 / Math.max(elapsed, 1), threads, failed, errors, codeWords);
+		results.sort((a, b) -> Long.compare(b.nanos, a.nanos));
+		if (slowest > 0 && !results.isEmpty()) out.println("Slowest files:");
+		for (FileResult r : results.subList(0, Math.min(slowest, results.size())))
+			out.printf("%10.3f ms  %s%n", r.nanos / 1e6, r.path);
+		if (failed > 0) System.exit(1);
+	}
+
+	private static FileResult compile(FoolCompiler compiler, Path file, String source, boolean writeAsm, boolean writeObj) {
+		ByteArrayOutputStream messages = new ByteArrayOutputStream();
+		captured.set(messages);
+		long start = System.nanoTime();
+		int errors, codeWords = 0;
+		try {
+			FoolCompiler.Result result = compiler.compile(CharStreams.fromString(source, file.toString()));
+			errors = result.errors;
+			if (errors == 0) {
+				codeWords = result.assembler.size();
+				if (writeAsm)
+					try (BufferedWriter w = Files.newBufferedWriter(Paths.get(file+".asm"))) {
+						result.asm.writeTo(w);
+					}
+				if (writeObj) result.toObjectFile(writeAsm).write(Paths.get(file+".svmo"));
+			}
+		} catch (IOException | RuntimeException | Error e) { // e.g. StackOverflowError parsing deeply nested expressions
+			System.out.println("Cannot compile "+file+": "+e);
+			errors = -1;
+		} finally {
+			captured.remove();
+		}
+		return new FileResult(file, errors, codeWords, System.nanoTime() - start, messages.toString());
+	}
+}
@@ -0,0 +1,239 @@
+package compiler;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.file.*;
+import java.util.*;
+import org.antlr.v4.runtime.*;
+import org.antlr.v4.runtime.tree.*;
+import compiler.lib.*;
+
+/**
+ * Benchmarks of the stages of the compiler pipeline and of the SVM, each measured on its own:
+ * lexing and parsing, AST generation, symbol table, type checking, code generation, assembly,
+ * execution by svm.ExecuteVM and execution of the class generated by svm.BytecodeCompiler. The
+ * input of each stage is produced once, before measuring.
+ *
+ * Inputs are the FOOL files given on the command line (the .fool files of the current directory
+ * if none) plus generated programs of the sizes given by --sizes (number of functions, with
+ * nested functions, conditions and calls). Inputs that do not compile or fail are skipped.
+ *
+ * Every stage is run for --warmup milliseconds, then measured in --iterations iterations of
+ * --time milliseconds each. The report gives throughput (operations per second, with the
+ * standard deviation between iterations) and allocation (bytes per operation and allocation
+ * rate), measured on the benchmark thread through com.sun.management.ThreadMXBean.
+ * --stage=name restricts the run to the stages whose name contains name.
+ *
+ * Results are only comparable on the same machine and JVM: run before and after a change.
+ */
+public class Benchmark {
+
+	private interface Stage {
+		Object run(Input in) throws Exception;
+	}
+
+	private static final int MEMSIZE = 1 << 20; // words of SVM memory, allocated as needed
+	private static final int JVM_MEMSIZE = svm.ExecuteVM.MEMSIZE; // allocated at once by svm.CompiledCode
+
+	private static final String[] STAGE_NAMES = {"parse", "ast", "symtable", "typecheck", "codegen", "assemble", "execute", "jvm"};
+	private static final Stage[] STAGES = {
+		in -> {
+			FOOLLexer lexer = new FOOLLexer(CharStreams.fromString(in.source));
+			return new FOOLParser(new CommonTokenStream(lexer)).prog();
+		},
+		in -> new ASTGenerationSTVisitor().visit(in.parseTree),
+		in -> new SymbolTableASTVisitor().visit(in.ast),
+		in -> new TypeCheckEASTVisitor().visit(in.ast),
+		in -> {
+			CodeGenerationASTVisitor visitor = new CodeGenerationASTVisitor();
+			visitor.visit(in.ast);
+			return visitor.getCode();
+		},
+		in -> svm.Assembler.assemble(in.asm),
+		in -> {
+			new svm.ExecuteVM(in.code, MEMSIZE).cpu();
+			return in.code;
+		},
+		in -> {
+			in.compiled.withMemory(JVM_MEMSIZE).cpu();
+			return in.compiled;
+		}
+	};
+
+	// a program with the inputs of all the stages
+	private static class Input {
+		final String name;
+		final String source;
+		ParseTree parseTree;
+		Node ast;      // enriched and type checked
+		String asm;
+		int[] code;
+		svm.CompiledCode compiled; // null if not compiled by svm.BytecodeCompiler or out of JVM_MEMSIZE
+
+		Input(String name, String source) { this.name = name; this.source = source; }
+
+		// false if the program does not compile or fails at runtime
+		boolean prepare() {
+			FOOLLexer lexer = new FOOLLexer(CharStreams.fromString(source));
+			FOOLParser parser = new FOOLParser(new CommonTokenStream(lexer));
+			parseTree = parser.prog();
+			if (lexer.lexicalErrors + parser.getNumberOfSyntaxErrors() > 0) return false;
+			ast = new ASTGenerationSTVisitor().visit(parseTree);
+			SymbolTableASTVisitor symtableVisitor = new SymbolTableASTVisitor();
+			symtableVisitor.visit(ast);
+			if (symtableVisitor.stErrors > 0) return false;
+			CompilerContext context = new CompilerContext();
+			try {
+				new TypeCheckEASTVisitor(context).visit(ast);
+			} catch (Exception e) {
+				return false;
+			}
+			if (context.typeErrors > 0) return false;
+			CodeGenerationASTVisitor codeVisitor = new CodeGenerationASTVisitor();
+			codeVisitor.visit(ast);
+			asm = codeVisitor.getCode().toString();
+			svm.Assembler assembler = svm.Assembler.assemble(asm);
+			if (assembler.errors() > 0) return false;
+			code = assembler.code();
+			try {
+				new svm.ExecuteVM(code, MEMSIZE).cpu();
+			} catch (svm.SVMException e) {
+				return false;
+			}
+			compiled = svm.BytecodeCompiler.compile(code);
+			try {
+				if (compiled != null) compiled.withMemory(JVM_MEMSIZE).cpu();
+			} catch (svm.SVMException e) {
+				compiled = null;
+			}
+			return true;
+		}
+	}
+
+	private static volatile Object sink; // results are stored here, so that the JIT cannot drop the work
+
+	private static final com.sun.management.ThreadMXBean THREADS =
+		(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+	private static long allocatedBytes() {
+		return THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	/**
+	 * A generated program with the given number of functions: each one declares a variable through
+	 * a call to the previous one and a nested function used in a condition; the main expression
+	 * calls the last one, so execution time also grows linearly with size.
+	 */
+	static String generate(int functions) {
+		StringBuilder s = new StringBuilder("let\n");
+		s.append("  fun f0:int (x:int, y:int) x * y + 1;\n");
+		for (int i = 1; i < functions; i++) {
+			s.append("  fun f").append(i).append(":int (x:int, y:int)\n");
+			s.append("    let\n");
+			s.append("      var z:int = f").append(i - 1).append("(x + 1, y) / 2;\n");
+			s.append("      fun g:bool (a:int) (a <= y) || (a == x) && !(a >= ").append(i).append(");\n");
+			s.append("    in if g(z) then { z + x * 2 } else { z - y };\n");
+		}
+		s.append("in print(f").append(functions - 1).append("(1, 2));\n");
+		return s.toString();
+	}
+
+	public static void main(String[] args) throws Exception {
+		long warmup = 1000, time = 1000;
+		int iterations = 5;
+		int[] sizes = {10, 100, 1000};
+		String stageFilter = "";
+		List<String> files = new ArrayList<>();
+		for (String arg : args)
+			if (arg.startsWith("--warmup=")) warmup = Long.parseLong(arg.substring("--warmup=".length()));
+			else if (arg.startsWith("--time=")) time = Long.parseLong(arg.substring("--time=".length()));
+			else if (arg.startsWith("--iterations=")) iterations = Integer.parseInt(arg.substring("--iterations=".length()));
+			else if (arg.startsWith("--sizes=")) sizes = Arrays.stream(arg.substring("--sizes=".length()).split(","))
+					.filter(x -> !x.isEmpty()).mapToInt(Integer::parseInt).toArray();
+			else if (arg.startsWith("--stage=")) stageFilter = arg.substring("--stage=".length());
+			else files.add(arg);
+		if (files.isEmpty())
+			try (DirectoryStream<Path> dir = Files.newDirectoryStream(Paths.get("."), "*.fool")) {
+				for (Path p : dir) files.add(p.toString());
+			}
+		Collections.sort(files);
+
+		PrintStream out = System.out;
+		List<Input> inputs = new ArrayList<>();
+		for (String f : files) inputs.add(new Input(Paths.get(f).getFileName().toString(), new String(Files.readAllBytes(Paths.get(f)))));
+		for (int size : sizes) inputs.add(new Input("generated-" + size, generate(size)));
+
+		out.printf("%-24s %-10s %14s %10s %12s %12s %10s%n", "input", "stage", "ops/s", "+-", "us/op", "B/op", "MB/s");
+		for (Input in : inputs) {
+			System.setOut(new PrintStream(OutputStream.nullOutputStream())); // compiler messages and program output
+			System.setErr(new PrintStream(OutputStream.nullOutputStream()));
+			boolean ok;
+			try {
+				ok = in.prepare();
+			} catch (RuntimeException e) {
+				ok = false;
+			}
+			if (!ok) {
+				restore(out);
+				out.printf("%-24s skipped: does not compile or fails at runtime%n", in.name);
+				continue;
+			}
+			for (int s = 0; s < STAGES.length; s++) {
+				if (!STAGE_NAMES[s].contains(stageFilter)) continue;
+				if (STAGE_NAMES[s].equals("jvm") && in.compiled == null) {
+					out.printf("%-24s %-10s skipped: not compiled or out of memory%n", in.name, STAGE_NAMES[s]);
+					continue;
+				}
+				System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+				double[][] r = measure(STAGES[s], in, warmup, iterations, time);
+				restore(out);
+				double mean = mean(r[0]);
+				double bytesPerOp = sum(r[1]) / sum(r[2]);
+				out.printf("%-24s %-10s %14.1f %10.1f %12.2f %12.0f %10.1f%n", in.name, STAGE_NAMES[s],
+					mean, stddev(r[0], mean), 1e6 / mean, bytesPerOp, bytesPerOp * mean / 1e6);
+			}
+		}
+		restore(out);
+	}
+
+	private static void restore(PrintStream out) {
+		System.setOut(out);
+		System.setErr(new PrintStream(new FileOutputStream(FileDescriptor.err), true));
+	}
+
+	// {ops/s of each iteration, bytes allocated in each iteration, operations of each iteration}
+	private static double[][] measure(Stage stage, Input in, long warmup, int iterations, long time) throws Exception {
+		long end = System.nanoTime() + warmup * 1_000_000;
+		while (System.nanoTime() < end) sink = stage.run(in);
+		double[][] r = new double[3][iterations];
+		for (int i = 0; i < iterations; i++) {
+			long ops = 0;
+			long bytes = allocatedBytes();
+			long start = System.nanoTime(), elapsed;
+			do {
+				sink = stage.run(in);
+				ops++;
+			} while ((elapsed = System.nanoTime() - start) < time * 1_000_000);
+			r[0][i] = ops * 1e9 / elapsed;
+			r[1][i] = allocatedBytes() - bytes;
+			r[2][i] = ops;
+		}
+		return r;
+	}
+
+	private static double sum(double[] v) {
+		double s = 0;
+		for (double x : v) s += x;
+		return s;
+	}
+
+	private static double mean(double[] v) {
+		return sum(v) / v.length;
+	}
+
+	private static double stddev(double[] v, double mean) {
+		double s = 0;
+		for (double x : v) s += (x - mean) * (x - mean);
+		return v.length > 1 ? Math.sqrt(s / (v.length - 1)) : 0;
+	}
+}
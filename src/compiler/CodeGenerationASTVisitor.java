@@ -1,281 +1,463 @@
 package compiler;
 
+import java.util.*;
 import compiler.AST.*;
 import compiler.lib.*;
 import compiler.exc.*;
-import static compiler.lib.FOOLlib.*;
 
-public class CodeGenerationASTVisitor extends BaseASTVisitor<String, VoidException> {
+// il codice viene emesso direttamente in un CodeBuffer (append-only) invece di essere
+// restituito come stringa: code e' il buffer corrente, funCode raccoglie il codice delle funzioni
+public class CodeGenerationASTVisitor extends BaseASTVisitor<Void, VoidException> {
 
-    CodeGenerationASTVisitor() {}
-    CodeGenerationASTVisitor(boolean debug) {super(false,debug);} //enables print for debugging
+	private CodeBuffer code = new CodeBuffer();
+	private final CodeBuffer funCode = new CodeBuffer();
+
+	boolean fused = true; // istruzioni fuse lv, call e ret (false: le sequenze generiche equivalenti)
+	// display: il frame di ogni livello di annidamento e' tenuto in una tabella della VM (ldisp/sdisp), cosi'
+	// ogni accesso non locale costa un solo accesso invece di una risalita della catena statica;
+	// il posto dell'Access Link nel frame contiene il valore del display che il chiamato ripristina al ritorno
+	boolean display = false;
+
+	private int nestingLevel = 0; // livello di annidamento del codice corrente (0: programma principale)
+
+	// chiamate in coda compilate come salti (tjs) che riusano il frame del chiamante invece di impilarne uno nuovo
+	boolean tailCalls = true;
+	final List<String> tailCallReport = new ArrayList<>(); // una riga per ogni chiamata trasformata in salto
+	private FunNode function; // funzione di cui si genera il corpo (null nel programma principale)
+	private final Set<Node> tailPositions = Collections.newSetFromMap(new IdentityHashMap<>());
+
+	private final CompilerContext context; // genera le etichette
+
+    CodeGenerationASTVisitor() { this(new CompilerContext()); }
+    CodeGenerationASTVisitor(CompilerContext context) { this.context = context; }
+    CodeGenerationASTVisitor(CompilerContext context, boolean debug) {super(false,debug); this.context = context;} //enables print for debugging
+
+	CodeBuffer getCode() { // codice generato dall'ultima visita di un ProgLetInNode/ProgNode
+		return code;
+	}
+
+	private void emit(String op) { code.emit(op); }
+	private void emit(String op, String arg) { code.emit(op, arg); }
+	private void emit(String op, int arg) { code.emit(op, arg); }
+	private void label(String l) { code.label(l); }
 
 	@Override
-	public String visitNode(ProgLetInNode n) {
+	public Void visitNode(ProgLetInNode n) {
 		if (print) printNode(n);
-		String declCode = null;
-		for (Node dec : n.declist) declCode=nlJoin(declCode,visit(dec));
-		return nlJoin(
-			"push 0",	
-			declCode, // generate code for declarations (allocation)			
-			visit(n.exp),
-			"halt",
-			getCode()
-		);
+		emit("push", 0);
+		if (display) {
+			emit("lfp"); emit("sdisp", 0); // frame of the main program as level 0 of the display
+		}
+		for (Node dec : n.declist) visit(dec); // generate code for declarations (allocation)
+		visit(n.exp);
+		emit("halt");
+		code.append(funCode);
+		return null;
 	}
 
 	@Override
-	public String visitNode(ProgNode n) {
+	public Void visitNode(ProgNode n) {
 		if (print) printNode(n);
-		return nlJoin(
-			visit(n.exp),
-			"halt"
-		);
+		visit(n.exp);
+		emit("halt");
+		return null;
 	}
 
 	@Override
-	public String visitNode(FunNode n) {
+	public Void visitNode(FunNode n) {
 		if (print) printNode(n,n.id);
-		String declCode = null, popDecl = null, popParl = null;
-		for (Node dec : n.declist) {
-			declCode = nlJoin(declCode,visit(dec));
-			popDecl = nlJoin(popDecl,"pop");
+		CodeBuffer outer = code;
+		int level = ++nestingLevel; // nesting level of the function body
+		CodeBuffer declCode = code = new CodeBuffer();
+		for (Node dec : n.declist) visit(dec);
+		String funl = context.freshFunLabel();
+		code = new CodeBuffer();
+		label(funl);
+		emit("cfp"); // set $fp to $sp value
+		emit("lra"); // load $ra value
+		if (display) {
+			emit("lfp"); emit("sdisp", level); // the new frame is the one of its level in the display
+		}
+		code.append(declCode); // generate code for local declarations (they use the new $fp!!!)
+		FunNode outerFunction = function;
+		function = n;
+		if (tailCalls) markTailPositions(n.exp);
+		visit(n.exp); // generate code for function body expression
+		function = outerFunction;
+		nestingLevel--;
+		if (display) { // restore the display entry saved by the caller in place of the Access Link
+			if (fused) emit("lv", "0 0");
+			else { emit("lfp"); emit("lw"); }
+			emit("sdisp", level);
 		}
-		for (int i=0;i<n.parlist.size();i++) popParl = nlJoin(popParl,"pop");
-		String funl = freshFunLabel();
-		putCode(
-			nlJoin(
-				funl+":",
-				"cfp", // set $fp to $sp value
-				"lra", // load $ra value
-				declCode, // generate code for local declarations (they use the new $fp!!!)
-				visit(n.exp), // generate code for function body expression
-				"stm", // set $tm to popped value (function result)
-				popDecl, // remove local declarations from stack
-				"sra", // set $ra to popped value
-				"pop", // remove Access Link from stack
-				popParl, // remove parameters from stack
-				"sfp", // set $fp to popped value (Control Link)
-				"ltm", // load $tm value (function result)
-				"lra", // load $ra value
-				"js"  // jump to to popped address
-			)
-		);
-		return "push "+funl;		
+		if (fused) {
+			emit("ret", n.parlist.size()); // pop function result, remove the frame (local declarations, $ra value,
+			                               // Access Link, parameters) restoring $ra and $fp (Control Link),
+			                               // push function result and jump to $ra
+		} else {
+			emit("stm"); // set $tm to popped value (function result)
+			for (int i=0;i<n.declist.size();i++) emit("pop"); // remove local declarations from stack
+			emit("sra"); // set $ra to popped value
+			emit("pop"); // remove Access Link from stack
+			for (int i=0;i<n.parlist.size();i++) emit("pop"); // remove parameters from stack
+			emit("sfp"); // set $fp to popped value (Control Link)
+			emit("ltm"); // load $tm value (function result)
+			emit("lra"); // load $ra value
+			emit("js");  // jump to to popped address
+		}
+		funCode.blank(); //linea vuota di separazione prima di codice funzione
+		funCode.append(code);
+		code = outer;
+		emit("push", funl);
+		return null;
+	}
+
+	// chiamate il cui risultato e' quello della funzione: il corpo stesso o, ricorsivamente, i rami di un if
+	private void markTailPositions(Node exp) {
+		if (exp instanceof CallNode) tailPositions.add(exp);
+		else if (exp instanceof IfNode) {
+			markTailPositions(((IfNode) exp).th);
+			markTailPositions(((IfNode) exp).el);
+		}
+	}
+
+	// una chiamata in coda riusa il frame corrente solo se il chiamato non vi e' annidato (il suo Access Link
+	// e' un frame piu' esterno) e, con il display, se e' dello stesso livello (il valore salvato nel posto
+	// dell'Access Link resta quello da ripristinare al ritorno)
+	private boolean isTailCall(CallNode n) {
+		return tailPositions.contains(n) && n.nl > n.entry.nl && (!display || n.entry.nl+1 == n.nl);
 	}
 
 	@Override
-	public String visitNode(VarNode n) {
+	public Void visitNode(VarNode n) {
 		if (print) printNode(n,n.id);
-		return visit(n.exp);
+		visit(n.exp);
+		return null;
 	}
 
 	@Override
-	public String visitNode(PrintNode n) {
+	public Void visitNode(PrintNode n) {
 		if (print) printNode(n);
-		return nlJoin(
-			visit(n.exp),
-			"print"
-		);
+		visit(n.exp);
+		emit("print");
+		return null;
 	}
 
 	@Override
-	public String visitNode(IfNode n) {
+	public Void visitNode(IfNode n) {
 		if (print) printNode(n);
-	 	String l1 = freshLabel();
-	 	String l2 = freshLabel();		
-		return nlJoin(
-			visit(n.cond),
-			"push 1",
-			"beq "+l1,
-			visit(n.el),
-			"b "+l2,
-			l1+":",
-			visit(n.th),
-			l2+":"
-		);
+	 	String l1 = context.freshLabel();
+	 	String l2 = context.freshLabel();
+		jumpIfTrue(n.cond, l1); // jump to then branch without building the 0/1 value of the condition
+		visit(n.el);
+		emit("b", l2);
+		label(l1);
+		visit(n.th);
+		label(l2);
+		return null;
+	}
+
+	// salti diretti per le condizioni: confronti e operatori booleani saltano a target quando la condizione
+	// e' vera (jumpIfTrue) o falsa (jumpIfFalse) e altrimenti proseguono, senza costruire il valore 0/1;
+	// gli operandi sono valutati nello stesso ordine (e con lo stesso corto circuito) che come valori
+	private void jumpIfTrue(Node cond, String target) {
+		if (cond instanceof EqualNode || cond instanceof LessEqualNode || cond instanceof GreaterEqualNode) {
+			compare(cond, target);
+		} else if (cond instanceof NotNode) {
+			jumpIfFalse(((NotNode) cond).exp, target);
+		} else if (cond instanceof OrNode) {
+			jumpIfTrue(((OrNode) cond).left, target);
+			jumpIfTrue(((OrNode) cond).right, target);
+		} else if (cond instanceof AndNode) {
+			String skip = context.freshLabel();
+			jumpIfFalse(((AndNode) cond).left, skip);
+			jumpIfTrue(((AndNode) cond).right, target);
+			label(skip);
+		} else if (cond instanceof BoolNode) {
+			if (((BoolNode) cond).val) emit("b", target);
+		} else {
+			visit(cond);
+			emit("push", 1);
+			emit("beq", target);
+		}
+	}
+
+	private void jumpIfFalse(Node cond, String target) {
+		if (cond instanceof EqualNode || cond instanceof LessEqualNode || cond instanceof GreaterEqualNode) {
+			String skip = context.freshLabel(); // no negated branches in SVM: jump over the jump to target
+			compare(cond, skip);
+			emit("b", target);
+			label(skip);
+		} else if (cond instanceof NotNode) {
+			jumpIfTrue(((NotNode) cond).exp, target);
+		} else if (cond instanceof AndNode) {
+			jumpIfFalse(((AndNode) cond).left, target);
+			jumpIfFalse(((AndNode) cond).right, target);
+		} else if (cond instanceof OrNode) {
+			String skip = context.freshLabel();
+			jumpIfTrue(((OrNode) cond).left, skip);
+			jumpIfFalse(((OrNode) cond).right, target);
+			label(skip);
+		} else if (cond instanceof BoolNode) {
+			if (!((BoolNode) cond).val) emit("b", target);
+		} else {
+			visit(cond);
+			emit("push", 0);
+			emit("beq", target);
+		}
+	}
+
+	// evaluates the operands of a comparison and jumps to target if it holds
+	private void compare(Node cond, String target) {
+		if (cond instanceof EqualNode) {
+			visit(((EqualNode) cond).left);
+			visit(((EqualNode) cond).right);
+			emit("beq", target);
+		} else if (cond instanceof LessEqualNode) {
+			visit(((LessEqualNode) cond).left);
+			visit(((LessEqualNode) cond).right);
+			emit("bleq", target);
+		} else {
+			visit(((GreaterEqualNode) cond).right); // right <= left, as in visitNode(GreaterEqualNode)
+			visit(((GreaterEqualNode) cond).left);
+			emit("bleq", target);
+		}
 	}
 
 	@Override
-	public String visitNode(EqualNode n) {
+	public Void visitNode(EqualNode n) {
 		if (print) printNode(n);
-	 	String l1 = freshLabel();
-	 	String l2 = freshLabel();
-		return nlJoin(
-			visit(n.left),
-			visit(n.right),
-			"beq "+l1,
-			"push 0",
-			"b "+l2,
-			l1+":",
-			"push 1",
-			l2+":"
-		);
+	 	String l1 = context.freshLabel();
+	 	String l2 = context.freshLabel();
+		visit(n.left);
+		visit(n.right);
+		emit("beq", l1);
+		emit("push", 0);
+		emit("b", l2);
+		label(l1);
+		emit("push", 1);
+		label(l2);
+		return null;
 	}
 
 	@Override
-	public String visitNode(TimesNode n) {
+	public Void visitNode(TimesNode n) {
 		if (print) printNode(n);
-		return nlJoin(
-			visit(n.left),
-			visit(n.right),
-			"mult"
-		);	
+		visit(n.left);
+		visit(n.right);
+		emit("mult");
+		return null;
 	}
 
 	@Override
-	public String visitNode(PlusNode n) {
+	public Void visitNode(PlusNode n) {
 		if (print) printNode(n);
-		return nlJoin(
-			visit(n.left),
-			visit(n.right),
-			"add"				
-		);
+		visit(n.left);
+		visit(n.right);
+		emit("add");
+		return null;
 	}
 
 	@Override
-	public String visitNode(CallNode n) {
+	public Void visitNode(CallNode n) {
 		if (print) printNode(n,n.id);
-		String argCode = null, getAR = null;
-		for (int i=n.arglist.size()-1;i>=0;i--) argCode=nlJoin(argCode,visit(n.arglist.get(i)));
-		for (int i = 0;i<n.nl-n.entry.nl;i++) getAR=nlJoin(getAR,"lw");
-		return nlJoin(
-			"lfp", // load Control Link (pointer to frame of function "id" caller)
-			argCode, // generate code for argument expressions in reversed order
-			"lfp", getAR, // retrieve address of frame containing "id" declaration
-                          // by following the static chain (of Access Links)
-            "stm", // set $tm to popped value (with the aim of duplicating top of stack)
-            "ltm", // load Access Link (pointer to frame of function "id" declaration)
-            "ltm", // duplicate top of stack
-            "push "+n.entry.offset, "add", // compute address of "id" declaration
-			"lw", // load address of "id" function
-            "js"  // jump to popped address (saving address of subsequent instruction in $ra)
-		);
+		if (isTailCall(n)) {
+			for (int i=n.arglist.size()-1;i>=0;i--) visit(n.arglist.get(i)); // generate code for argument expressions in reversed order
+			if (display) {
+				if (fused) emit("lv", "0 0"); else { emit("lfp"); emit("lw"); } // keep the display entry saved by the caller
+				if (fused) emit("dlv", n.entry.nl+" "+n.entry.offset); // load address of "id" function from the frame
+				else {                                                  // containing its declaration, taken from the display
+					emit("ldisp", n.entry.nl);
+					emit("push", n.entry.offset); emit("add");
+					emit("lw");
+				}
+			} else if (fused) {
+				emit("lv", (n.nl-n.entry.nl-1)+" 0"); // load Access Link (the one of the frame one step before along the static chain)
+				emit("lv", (n.nl-n.entry.nl)+" "+n.entry.offset); // load address of "id" function
+			} else {
+				emit("lfp"); // retrieve address of frame containing "id" declaration
+				for (int i = 0;i<n.nl-n.entry.nl;i++) emit("lw"); // by following the static chain (of Access Links)
+				emit("stm"); // set $tm to popped value (with the aim of duplicating top of stack)
+				emit("ltm"); // load Access Link (pointer to frame of function "id" declaration)
+				emit("ltm"); // duplicate top of stack
+				emit("push", n.entry.offset); emit("add"); // compute address of "id" declaration
+				emit("lw"); // load address of "id" function
+			}
+			emit("tjs", (n.arglist.size()+1)+" "+function.parlist.size()); // replace the current frame with parameters and
+			                               // Access Link (keeping its Control Link), restore $ra from it and jump to popped address
+			tailCallReport.add("call to "+n.id+" at line "+n.getLine()+" in "+function.id);
+			return null;
+		}
+		emit("lfp"); // load Control Link (pointer to frame of function "id" caller)
+		for (int i=n.arglist.size()-1;i>=0;i--) visit(n.arglist.get(i)); // generate code for argument expressions in reversed order
+		if (display) {
+			if (fused) {
+				emit("dcall", n.entry.nl+" "+n.entry.offset); // save the display entry of the level of "id" body in place
+				                               // of the Access Link, then jump to address of "id" function at its offset
+				                               // in the frame of its declaration, taken from the display
+				return null;
+			}
+			emit("ldisp", n.entry.nl+1); // save the display entry of the level of "id" body in place of the Access Link
+			emit("ldisp", n.entry.nl); // load address of frame containing "id" declaration from the display
+			emit("push", n.entry.offset); emit("add"); // compute address of "id" declaration
+			emit("lw"); // load address of "id" function
+			emit("js");  // jump to popped address (saving address of subsequent instruction in $ra)
+			return null;
+		}
+		if (fused) {
+			emit("call", (n.nl-n.entry.nl)+" "+n.entry.offset); // retrieve address of frame containing "id" declaration
+			                               // by following the static chain (of Access Links), load it as Access Link,
+			                               // then jump to address of "id" function at its offset (saving address
+			                               // of subsequent instruction in $ra)
+			return null;
+		}
+		emit("lfp"); // retrieve address of frame containing "id" declaration
+		for (int i = 0;i<n.nl-n.entry.nl;i++) emit("lw"); // by following the static chain (of Access Links)
+		emit("stm"); // set $tm to popped value (with the aim of duplicating top of stack)
+		emit("ltm"); // load Access Link (pointer to frame of function "id" declaration)
+		emit("ltm"); // duplicate top of stack
+		emit("push", n.entry.offset); emit("add"); // compute address of "id" declaration
+		emit("lw"); // load address of "id" function
+		emit("js");  // jump to popped address (saving address of subsequent instruction in $ra)
+		return null;
 	}
 
 	@Override
-	public String visitNode(IdNode n) {
+	public Void visitNode(IdNode n) {
 		if (print) printNode(n,n.id);
-		String getAR = null;
-		for (int i = 0;i<n.nl-n.entry.nl;i++) getAR=nlJoin(getAR,"lw");
-		return nlJoin(
-			"lfp", getAR, // retrieve address of frame containing "id" declaration
-			              // by following the static chain (of Access Links)
-			"push "+n.entry.offset, "add", // compute address of "id" declaration
-			"lw" // load value of "id" variable
-		);
+		if (display && n.nl > n.entry.nl) { // non-local: frame containing "id" declaration taken from the display
+			if (fused) {
+				emit("dlv", n.entry.nl+" "+n.entry.offset);
+				return null;
+			}
+			emit("ldisp", n.entry.nl);
+			emit("push", n.entry.offset); emit("add"); // compute address of "id" declaration
+			emit("lw"); // load value of "id" variable
+			return null;
+		}
+		if (fused) {
+			emit("lv", (n.nl-n.entry.nl)+" "+n.entry.offset); // load value of "id" variable at its offset in the frame
+			                               // containing its declaration, reached by following the static chain
+			return null;
+		}
+		emit("lfp"); // retrieve address of frame containing "id" declaration
+		for (int i = 0;i<n.nl-n.entry.nl;i++) emit("lw"); // by following the static chain (of Access Links)
+		emit("push", n.entry.offset); emit("add"); // compute address of "id" declaration
+		emit("lw"); // load value of "id" variable
+		return null;
 	}
 
 	@Override
-	public String visitNode(BoolNode n) {
+	public Void visitNode(BoolNode n) {
 		if (print) printNode(n,n.val.toString());
-		return "push "+(n.val?1:0);
+		emit("push", n.val?1:0);
+		return null;
 	}
 
 	@Override
-	public String visitNode(IntNode n) {
+	public Void visitNode(IntNode n) {
 		if (print) printNode(n,n.val.toString());
-		return "push "+n.val;
+		emit("push", n.val);
+		return null;
 	}
 
     @Override
-    public String visitNode(MinusNode n) {
+    public Void visitNode(MinusNode n) {
         if (print) printNode(n);
-        return nlJoin(
-            visit(n.left),              // valuta operando sinistro e pusho sullo stack
-            visit(n.right),             // valuta operando destro e pusho sullo stack
-            "sub"                       // sottrae: pop right, pop left, push risultato (left - right)
-        );
+        visit(n.left);              // valuta operando sinistro e pusho sullo stack
+        visit(n.right);             // valuta operando destro e pusho sullo stack
+        emit("sub");                // sottrae: pop right, pop left, push risultato (left - right)
+        return null;
     }
 
     @Override
-    public String visitNode(DivNode n) {
+    public Void visitNode(DivNode n) {
         if (print) printNode(n);
-        return nlJoin(
-            visit(n.left),              // valuta operando sinistro e pusho sullo stack
-            visit(n.right),             // valuta operando destro e pusho sullo stack
-            "div"                       // divide: pop right, pop left, pusho il risultato (left / right)
-        );
+        visit(n.left);              // valuta operando sinistro e pusho sullo stack
+        visit(n.right);             // valuta operando destro e pusho sullo stack
+        emit("div");                // divide: pop right, pop left, pusho il risultato (left / right)
+        return null;
     }
 
     @Override
-    public String visitNode(NotNode n) {
-        String lTrue = freshLabel();
-        String lEnd = freshLabel();
-        return nlJoin(
-                visit(n.exp),
-                "push 0",
-                "beq " + lTrue, // Se è 0 (false), diventa 1 (true)
-                "push 0",       // Se era 1 (true), diventa 0 (false)
-                "b " + lEnd,
-                lTrue + ":",
-                "push 1",
-                lEnd + ":"
-        );
+    public Void visitNode(NotNode n) {
+        String lTrue = context.freshLabel();
+        String lEnd = context.freshLabel();
+        visit(n.exp);
+        emit("push", 0);
+        emit("beq", lTrue);         // Se è 0 (false), diventa 1 (true)
+        emit("push", 0);            // Se era 1 (true), diventa 0 (false)
+        emit("b", lEnd);
+        label(lTrue);
+        emit("push", 1);
+        label(lEnd);
+        return null;
     }
 
     @Override
-    public String visitNode(LessEqualNode n) {
+    public Void visitNode(LessEqualNode n) {
         if (print) printNode(n);
-        String l1 = freshLabel();       // etichetta per il caso "vero"
-        String l2 = freshLabel();       // etichetta per terminare operazione
-        return nlJoin(
-            visit(n.left),              // valuta operando sinistro e pusho sullo stack
-            visit(n.right),             // valuta operando destro e pusho sullo stack
-            "bleq " + l1,               // branch if left <= right: pop right, pop left, se cond vera salta a l1
-            "push 0",                   // cond falsa (left > right)
-            "b " + l2,                  // salta incondizionatamente all'uscita
-            l1 + ":",                   // etichetta caso vero
-            "push 1",                   // cond vera (left <= right)
-            l2 + ":"                    // etichetta di terminazione per pushare sullo stack il risultato
-        );
+        String l1 = context.freshLabel();       // etichetta per il caso "vero"
+        String l2 = context.freshLabel();       // etichetta per terminare operazione
+        visit(n.left);              // valuta operando sinistro e pusho sullo stack
+        visit(n.right);             // valuta operando destro e pusho sullo stack
+        emit("bleq", l1);           // branch if left <= right: pop right, pop left, se cond vera salta a l1
+        emit("push", 0);            // cond falsa (left > right)
+        emit("b", l2);              // salta incondizionatamente all'uscita
+        label(l1);                  // etichetta caso vero
+        emit("push", 1);            // cond vera (left <= right)
+        label(l2);                  // etichetta di terminazione per pushare sullo stack il risultato
+        return null;
     }
 
     @Override
-    public String visitNode(GreaterEqualNode n) {
+    public Void visitNode(GreaterEqualNode n) {
         if (print) printNode(n);
-        String l1 = freshLabel();       // etichetta per il caso "vero"
-        String l2 = freshLabel();       // etichetta per terminare l'operazione
-        return nlJoin(
-            visit(n.right),             // valuta operando destro (invertiamo l'ordine rispetto a LEQ) e pusho sullo stack
-            visit(n.left),              // valuta operando sinistro e pusho sullo stack
-            "bleq " + l1,               // branch if right <= left (cioè left >= right): pop left, pop right, se cond vera salta a l1
-            "push 0",                   // cond falsa (left < right)
-            "b " + l2,                  // salta incondizionatamente all'uscita
-            l1 + ":",                   // etichetta caso vero
-            "push 1",                   // cond vera (left >= right)risultato
-            l2 + ":"                    // etichetta di terminazione per pushare sullo stack il
-        );
+        String l1 = context.freshLabel();       // etichetta per il caso "vero"
+        String l2 = context.freshLabel();       // etichetta per terminare l'operazione
+        visit(n.right);             // valuta operando destro (invertiamo l'ordine rispetto a LEQ) e pusho sullo stack
+        visit(n.left);              // valuta operando sinistro e pusho sullo stack
+        emit("bleq", l1);           // branch if right <= left (cioè left >= right): pop left, pop right, se cond vera salta a l1
+        emit("push", 0);            // cond falsa (left < right)
+        emit("b", l2);              // salta incondizionatamente all'uscita
+        label(l1);                  // etichetta caso vero
+        emit("push", 1);            // cond vera (left >= right)risultato
+        label(l2);                  // etichetta di terminazione per pushare sullo stack il
+        return null;
     }
 
     @Override
-    public String visitNode(AndNode n) {
+    public Void visitNode(AndNode n) {
         if (print) printNode(n);
-        return nlJoin(
-            visit(n.left),              // valuta operando sinistro e pusho sullo stack
-            visit(n.right),             // valuta operando destro e pusho sullo stack
-            "mult"                      // moltiplica: pop right, pop left, push risultato (left * right)
-                                        //        risultato: 1 solo se entrambi 1
-        );
+        String l1 = context.freshLabel();        // etichetta per il caso falso
+        String l2 = context.freshLabel();        // etichetta per terminare l'operazione
+        visit(n.left);              // valuta operando sinistro e pusho sullo stack
+        emit("push", 0);            // pusho 0 sullo stack per il confronto
+        emit("beq", l1);            // se left == 0, salta a l1 (già falso, skip right): pop 0, pop left, se uguali salta
+        visit(n.right);             // left era 1, il risultato è il valore dell'operando destro
+        emit("b", l2);              // salta all'uscita
+        label(l1);                  // etichetta caso falso
+        emit("push", 0);            // cond falsa (left era 0)
+        label(l2);                  // etichetta di terminazione per pushare sullo stack il risultato
+        return null;
     }
 
     @Override
-    public String visitNode(OrNode n) {
+    public Void visitNode(OrNode n) {
         if (print) printNode(n);
-        String l1 = freshLabel();        // etichetta per il caso vero
-        String l2 = freshLabel();        // etichetta per terminare l'operazione
-        return nlJoin(
-            visit(n.left),               // valuta operando sinistro e pusho sullo stack
-            "push 1",                    // pusho 1 sullo stack per il confronto
-            "beq " + l1,                 // se left == 1, salta a l1 (già vero, skip right): pop 1, pop left, se uguali salta
-            visit(n.right),              // left era 0, valuta operando destro e pusho sullo stack
-            "push 1",                    // push 1 sullo stack per il confronto
-            "beq " + l1,                 // se right == 1, salta a l1 (vero): pop 1, pop right, se uguali salta
-            "push 0",                    // entrambi erano 0, allora pusho 0 (falso)
-            "b " + l2,                   // salta all'uscita
-            l1 + ":",                    // etichetta caso vero
-            "push 1",                    // cond vera (almeno uno era vero)
-            l2 + ":"                     // etichetta di terminazione per pushare sullo stack il risultato
-        );
+        String l1 = context.freshLabel();        // etichetta per il caso vero
+        String l2 = context.freshLabel();        // etichetta per terminare l'operazione
+        visit(n.left);              // valuta operando sinistro e pusho sullo stack
+        emit("push", 1);            // pusho 1 sullo stack per il confronto
+        emit("beq", l1);            // se left == 1, salta a l1 (già vero, skip right): pop 1, pop left, se uguali salta
+        visit(n.right);             // left era 0, valuta operando destro e pusho sullo stack
+        emit("push", 1);            // push 1 sullo stack per il confronto
+        emit("beq", l1);            // se right == 1, salta a l1 (vero): pop 1, pop right, se uguali salta
+        emit("push", 0);            // entrambi erano 0, allora pusho 0 (falso)
+        emit("b", l2);              // salta all'uscita
+        label(l1);                  // etichetta caso vero
+        emit("push", 1);            // cond vera (almeno uno era vero)
+        label(l2);                  // etichetta di terminazione per pushare sullo stack il risultato
+        return null;
     }
 }
\ No newline at end of file
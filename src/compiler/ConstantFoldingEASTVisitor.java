@@ -0,0 +1,339 @@
+package compiler;
+
+import java.util.*;
+import compiler.AST.*;
+import compiler.exc.*;
+import compiler.lib.*;
+
+//visitNode(n) returns the simplified version of node n (n itself if nothing changed):
+//- arithmetic, comparisons and boolean operators on constants are computed
+//- neutral elements (x+0, x-0, x*1, x/1, true&&x, false||x, ...) are removed
+//- absorbing elements (x*0, false&&x, x||true, ...) drop the other operand if it has no effects
+//- ifs with a constant condition are replaced by the branch that runs
+//Division by the constant 0 is never computed, so that it still fails at runtime.
+//Runs on the enriched AST after type checking (rebuilt nodes keep their STentry).
+public class ConstantFoldingEASTVisitor extends BaseEASTVisitor<Node,VoidException> {
+
+	int removedNodes = 0; // number of AST nodes removed by the pass
+
+	ConstantFoldingEASTVisitor() {}
+	ConstantFoldingEASTVisitor(boolean debug) { super(false,debug); } // enables print for debugging
+
+	private static boolean isConst(Node n) {
+		return n instanceof IntNode || n instanceof BoolNode;
+	}
+
+	private static int value(Node n) {
+		return n instanceof IntNode ? ((IntNode) n).val : (((BoolNode) n).val ? 1 : 0);
+	}
+
+	private static Node intNode(int v, Node from) {
+		Node n = new IntNode(v);
+		n.setLine(from.getLine());
+		return n;
+	}
+
+	private static Node boolNode(boolean v, Node from) {
+		Node n = new BoolNode(v);
+		n.setLine(from.getLine());
+		return n;
+	}
+
+	private static <T extends Node> T line(T n, Node from) {
+		n.setLine(from.getLine());
+		return n;
+	}
+
+	// subexpressions of an expression
+	static List<Node> children(Node n) {
+		if (n instanceof PlusNode) return List.of(((PlusNode) n).left, ((PlusNode) n).right);
+		if (n instanceof MinusNode) return List.of(((MinusNode) n).left, ((MinusNode) n).right);
+		if (n instanceof TimesNode) return List.of(((TimesNode) n).left, ((TimesNode) n).right);
+		if (n instanceof DivNode) return List.of(((DivNode) n).left, ((DivNode) n).right);
+		if (n instanceof EqualNode) return List.of(((EqualNode) n).left, ((EqualNode) n).right);
+		if (n instanceof LessEqualNode) return List.of(((LessEqualNode) n).left, ((LessEqualNode) n).right);
+		if (n instanceof GreaterEqualNode) return List.of(((GreaterEqualNode) n).left, ((GreaterEqualNode) n).right);
+		if (n instanceof AndNode) return List.of(((AndNode) n).left, ((AndNode) n).right);
+		if (n instanceof OrNode) return List.of(((OrNode) n).left, ((OrNode) n).right);
+		if (n instanceof NotNode) return List.of(((NotNode) n).exp);
+		if (n instanceof IfNode) return List.of(((IfNode) n).cond, ((IfNode) n).th, ((IfNode) n).el);
+		if (n instanceof PrintNode) return List.of(((PrintNode) n).exp);
+		if (n instanceof CallNode) return ((CallNode) n).arglist;
+		if (n instanceof ClassCallNode) return ((ClassCallNode) n).arglist;
+		if (n instanceof NewNode) return ((NewNode) n).arglist;
+		return List.of();
+	}
+
+	// number of nodes of an expression
+	static int size(Node n) {
+		int size = 1;
+		for (Node c : children(n)) size += size(c);
+		return size;
+	}
+
+	// number of nodes of an expression, -1 if its evaluation may have effects (print, calls, objects)
+	// or fail (division by a non-constant or by 0)
+	static int pureSize(Node n) {
+		if (n instanceof PrintNode || n instanceof CallNode || n instanceof ClassCallNode || n instanceof NewNode) return -1;
+		if (n instanceof DivNode && !(((DivNode) n).right instanceof IntNode && ((IntNode) ((DivNode) n).right).val != 0)) return -1;
+		int size = 1;
+		for (Node c : children(n)) {
+			int s = pureSize(c);
+			if (s < 0) return -1;
+			size += s;
+		}
+		return size;
+	}
+
+	// records the removal of the given number of nodes, replaced by result
+	private Node removing(int nodes, Node result) {
+		removedNodes += nodes;
+		return result;
+	}
+
+	private List<DecNode> foldDecs(List<DecNode> decs) {
+		List<DecNode> result = new ArrayList<>();
+		for (DecNode dec : decs) result.add((DecNode) visit(dec));
+		return result;
+	}
+
+	private List<Node> foldArgs(List<Node> args) {
+		List<Node> result = new ArrayList<>();
+		for (Node arg : args) result.add(visit(arg));
+		return result;
+	}
+
+	@Override
+	public Node visitNode(ProgLetInNode n) {
+		if (print) printNode(n);
+		List<DecNode> declist = foldDecs(n.declist);
+		Node exp = visit(n.exp);
+		if (declist.equals(n.declist) && exp == n.exp) return n;
+		return line(new ProgLetInNode(declist, exp), n);
+	}
+
+	@Override
+	public Node visitNode(ProgNode n) {
+		if (print) printNode(n);
+		Node exp = visit(n.exp);
+		return exp == n.exp ? n : line(new ProgNode(exp), n);
+	}
+
+	@Override
+	public Node visitNode(FunNode n) {
+		if (print) printNode(n,n.id);
+		List<DecNode> declist = foldDecs(n.declist);
+		Node exp = visit(n.exp);
+		if (declist.equals(n.declist) && exp == n.exp) return n;
+		FunNode f = line(new FunNode(n.id, n.retType, n.parlist, declist, exp), n);
+		f.entry = n.entry;
+		return f;
+	}
+
+	@Override
+	public Node visitNode(VarNode n) {
+		if (print) printNode(n,n.id);
+		Node exp = visit(n.exp);
+		return exp == n.exp ? n : line(new VarNode(n.id, n.getType(), exp), n);
+	}
+
+	@Override
+	public Node visitNode(PrintNode n) {
+		if (print) printNode(n);
+		Node exp = visit(n.exp);
+		return exp == n.exp ? n : line(new PrintNode(exp), n);
+	}
+
+	@Override
+	public Node visitNode(IfNode n) {
+		if (print) printNode(n);
+		Node cond = visit(n.cond);
+		Node th = visit(n.th);
+		Node el = visit(n.el);
+		if (cond instanceof BoolNode) // prune the branch that can never run
+			return ((BoolNode) cond).val ? removing(2 + size(el), th) : removing(2 + size(th), el);
+		if (cond == n.cond && th == n.th && el == n.el) return n;
+		return line(new IfNode(cond, th, el), n);
+	}
+
+	@Override
+	public Node visitNode(EqualNode n) {
+		if (print) printNode(n);
+		Node l = visit(n.left), r = visit(n.right);
+		if (isConst(l) && isConst(r)) return removing(2, boolNode(value(l) == value(r), n));
+		return l == n.left && r == n.right ? n : line(new EqualNode(l, r), n);
+	}
+
+	@Override
+	public Node visitNode(LessEqualNode n) {
+		if (print) printNode(n);
+		Node l = visit(n.left), r = visit(n.right);
+		if (isConst(l) && isConst(r)) return removing(2, boolNode(value(l) <= value(r), n));
+		return l == n.left && r == n.right ? n : line(new LessEqualNode(l, r), n);
+	}
+
+	@Override
+	public Node visitNode(GreaterEqualNode n) {
+		if (print) printNode(n);
+		Node l = visit(n.left), r = visit(n.right);
+		if (isConst(l) && isConst(r)) return removing(2, boolNode(value(l) >= value(r), n));
+		return l == n.left && r == n.right ? n : line(new GreaterEqualNode(l, r), n);
+	}
+
+	@Override
+	public Node visitNode(PlusNode n) {
+		if (print) printNode(n);
+		Node l = visit(n.left), r = visit(n.right);
+		if (isConst(l) && isConst(r)) return removing(2, intNode(value(l) + value(r), n));
+		if (isConst(r) && value(r) == 0) return removing(2, l);
+		if (isConst(l) && value(l) == 0) return removing(2, r);
+		return l == n.left && r == n.right ? n : line(new PlusNode(l, r), n);
+	}
+
+	@Override
+	public Node visitNode(MinusNode n) {
+		if (print) printNode(n);
+		Node l = visit(n.left), r = visit(n.right);
+		if (isConst(l) && isConst(r)) return removing(2, intNode(value(l) - value(r), n));
+		if (isConst(r) && value(r) == 0) return removing(2, l);
+		return l == n.left && r == n.right ? n : line(new MinusNode(l, r), n);
+	}
+
+	@Override
+	public Node visitNode(TimesNode n) {
+		if (print) printNode(n);
+		Node l = visit(n.left), r = visit(n.right);
+		if (isConst(l) && isConst(r)) return removing(2, intNode(value(l) * value(r), n));
+		if (isConst(r) && value(r) == 1) return removing(2, l);
+		if (isConst(l) && value(l) == 1) return removing(2, r);
+		if (isConst(r) && value(r) == 0 && pureSize(l) >= 0) return removing(1 + pureSize(l), intNode(0, n));
+		if (isConst(l) && value(l) == 0 && pureSize(r) >= 0) return removing(1 + pureSize(r), intNode(0, n));
+		return l == n.left && r == n.right ? n : line(new TimesNode(l, r), n);
+	}
+
+	@Override
+	public Node visitNode(DivNode n) {
+		if (print) printNode(n);
+		Node l = visit(n.left), r = visit(n.right);
+		if (isConst(r) && value(r) != 0) { // division by 0 is left to fail at runtime
+			if (isConst(l)) return removing(2, intNode(value(l) / value(r), n));
+			if (value(r) == 1) return removing(2, l);
+		}
+		return l == n.left && r == n.right ? n : line(new DivNode(l, r), n);
+	}
+
+	@Override
+	public Node visitNode(AndNode n) {
+		if (print) printNode(n);
+		Node l = visit(n.left), r = visit(n.right);
+		if (isConst(l) && isConst(r)) return removing(2, boolNode(value(l) == 1 && value(r) == 1, n));
+		if (l instanceof BoolNode && ((BoolNode) l).val) return removing(2, r);
+		if (r instanceof BoolNode && ((BoolNode) r).val) return removing(2, l);
+		if (l instanceof BoolNode && pureSize(r) >= 0) return removing(1 + pureSize(r), l);
+		if (r instanceof BoolNode && pureSize(l) >= 0) return removing(1 + pureSize(l), r);
+		return l == n.left && r == n.right ? n : line(new AndNode(l, r), n);
+	}
+
+	@Override
+	public Node visitNode(OrNode n) {
+		if (print) printNode(n);
+		Node l = visit(n.left), r = visit(n.right);
+		if (isConst(l) && isConst(r)) return removing(2, boolNode(value(l) == 1 || value(r) == 1, n));
+		if (l instanceof BoolNode && ((BoolNode) l).val) return removing(1 + size(r), l); // right side never evaluated
+		if (l instanceof BoolNode) return removing(2, r);
+		if (r instanceof BoolNode && !((BoolNode) r).val) return removing(2, l);
+		if (r instanceof BoolNode && pureSize(l) >= 0) return removing(1 + pureSize(l), r);
+		return l == n.left && r == n.right ? n : line(new OrNode(l, r), n);
+	}
+
+	@Override
+	public Node visitNode(NotNode n) {
+		if (print) printNode(n);
+		Node exp = visit(n.exp);
+		if (isConst(exp)) return removing(1, boolNode(value(exp) == 0, n));
+		if (exp instanceof NotNode) return removing(2, ((NotNode) exp).exp);
+		return exp == n.exp ? n : line(new NotNode(exp), n);
+	}
+
+	@Override
+	public Node visitNode(CallNode n) {
+		if (print) printNode(n,n.id);
+		List<Node> arglist = foldArgs(n.arglist);
+		if (arglist.equals(n.arglist)) return n;
+		CallNode c = line(new CallNode(n.id, arglist), n);
+		c.entry = n.entry;
+		c.nl = n.nl;
+		return c;
+	}
+
+	@Override
+	public Node visitNode(IdNode n) {
+		if (print) printNode(n,n.id);
+		return n;
+	}
+
+	@Override
+	public Node visitNode(BoolNode n) {
+		if (print) printNode(n,n.val.toString());
+		return n;
+	}
+
+	@Override
+	public Node visitNode(IntNode n) {
+		if (print) printNode(n,n.val.toString());
+		return n;
+	}
+
+	// OBJECT-ORIENTED EXTENSION
+
+	@Override
+	public Node visitNode(ClassNode n) {
+		if (print) printNode(n,n.id);
+		List<MethodNode> methodList = new ArrayList<>();
+		for (MethodNode m : n.methodList) methodList.add((MethodNode) visit(m));
+		if (methodList.equals(n.methodList)) return n;
+		ClassNode c = line(new ClassNode(n.id, n.fieldList, methodList), n);
+		c.entry = n.entry;
+		c.nl = n.nl;
+		return c;
+	}
+
+	@Override
+	public Node visitNode(MethodNode n) {
+		if (print) printNode(n,n.id);
+		List<DecNode> declist = foldDecs(n.declist);
+		Node exp = visit(n.exp);
+		if (declist.equals(n.declist) && exp == n.exp) return n;
+		MethodNode m = line(new MethodNode(n.id, n.retType, n.parlist, declist, exp), n);
+		m.offset = n.offset;
+		return m;
+	}
+
+	@Override
+	public Node visitNode(ClassCallNode n) {
+		if (print) printNode(n,n.id1+"."+n.id2);
+		List<Node> arglist = foldArgs(n.arglist);
+		if (arglist.equals(n.arglist)) return n;
+		ClassCallNode c = line(new ClassCallNode(n.id1, n.id2, arglist), n);
+		c.entry = n.entry;
+		c.methodEntry = n.methodEntry;
+		c.nl = n.nl;
+		return c;
+	}
+
+	@Override
+	public Node visitNode(NewNode n) {
+		if (print) printNode(n,n.id);
+		List<Node> arglist = foldArgs(n.arglist);
+		if (arglist.equals(n.arglist)) return n;
+		NewNode c = line(new NewNode(n.id, arglist), n);
+		c.entry = n.entry;
+		return c;
+	}
+
+	@Override
+	public Node visitNode(EmptyNode n) {
+		if (print) printNode(n);
+		return n;
+	}
+}
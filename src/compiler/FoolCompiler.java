@@ -0,0 +1,263 @@
+package compiler;
+
+import java.util.*;
+import java.util.concurrent.*;
+import org.antlr.v4.runtime.*;
+import org.antlr.v4.runtime.tree.*;
+import compiler.AST.*;
+import compiler.lib.*;
+import compiler.exc.*;
+
+/**
+ * Compiles FOOL source code to assembled SVM code entirely in memory: the generated CodeBuffer
+ * is assembled directly by svm.Assembler, without writing and re-parsing the .asm text.
+ *
+ * When verbose, the phases and their error counts are printed as in Test.
+ *
+ * The state of a compilation (labels, type errors, ...) is created by compile and passed along in a
+ * CompilerContext, so compile can be called on the same FoolCompiler from several threads at once,
+ * as compileAll does. Error messages are printed as they are found, so they can interleave.
+ */
+public class FoolCompiler {
+
+	public static class Result {
+		public final int errors;         // front-end and assembly errors (code is null if > 0)
+		public final CodeBuffer asm;     // generated (and optimized) assembly
+		public final int[] code;         // assembled code, runnable by svm and visualsvm
+		public final int[] sourceMap;    // line of asm.textLines() of each word of code
+		public final PhaseStats stats;   // time and allocation of the phases run, sizes of their results
+		public final Map<String,Integer> labels; // address of each label of code
+		final svm.Assembler assembler;
+
+		Result(int errors, CodeBuffer asm, svm.Assembler assembler, PhaseStats stats) {
+			this.errors = errors; this.asm = asm; this.assembler = assembler; this.stats = stats;
+			this.code = assembler != null ? assembler.code() : null;
+			this.sourceMap = assembler != null ? assembler.sourceMap() : null;
+			this.labels = assembler != null ? assembler.labels() : null;
+		}
+
+		public svm.ObjectFile toObjectFile(boolean withSourceMap) {
+			return new svm.ObjectFile(code, assembler.size(), withSourceMap ? sourceMap : null, labels);
+		}
+	}
+
+	private final boolean optimize;
+	private final boolean verbose;
+	private boolean fused = true;
+	private boolean display = false;
+	private boolean tailCalls = true;
+	private int inlineSize = INLINE_SIZE;
+
+	public static final int INLINE_SIZE = 12; // default max number of AST nodes of the body of an inlined function
+
+	public FoolCompiler() {
+		this(true, false);
+	}
+
+	public FoolCompiler(boolean optimize, boolean verbose) {
+		this.optimize = optimize;
+		this.verbose = verbose;
+	}
+
+	// false: generic instruction sequences instead of the fused lv, call and ret instructions
+	public FoolCompiler withFusedInstructions(boolean fused) {
+		this.fused = fused;
+		return this;
+	}
+
+	// true: non-local accesses through the display (ldisp/sdisp) instead of the static chain of Access Links
+	public FoolCompiler withDisplay(boolean display) {
+		this.display = display;
+		return this;
+	}
+
+	// false: calls in tail position push a new frame as the other ones, instead of reusing the caller's
+	public FoolCompiler withTailCalls(boolean tailCalls) {
+		this.tailCalls = tailCalls;
+		return this;
+	}
+
+	// functions whose body has at most maxSize nodes are inlined when optimizing (0: no inlining)
+	public FoolCompiler withInlining(int maxSize) {
+		this.inlineSize = maxSize;
+		return this;
+	}
+
+	private void log(String s) {
+		if (verbose) System.out.println(s);
+	}
+
+	public Result compile(String source) {
+		return compile(CharStreams.fromString(source));
+	}
+
+	// compiles the sources on the executor, results in the same order (and the same as one by one)
+	public List<Result> compileAll(List<CharStream> sources, ExecutorService executor)
+			throws InterruptedException {
+		List<Future<Result>> futures = new ArrayList<>();
+		for (CharStream source : sources) futures.add(executor.submit(() -> compile(source)));
+		List<Result> results = new ArrayList<>();
+		for (Future<Result> f : futures)
+			try {
+				results.add(f.get());
+			} catch (ExecutionException e) {
+				throw new RuntimeException(e.getCause());
+			}
+		return results;
+	}
+
+	public Result compile(CharStream chars) {
+		PhaseStats stats = new PhaseStats();
+		CompilerContext context = new CompilerContext();
+		FOOLLexer lexer = new FOOLLexer(chars);
+		CommonTokenStream tokens = new CommonTokenStream(lexer);
+		FOOLParser parser = new FOOLParser(tokens);
+
+		log("Generating ST via lexer and parser.");
+		stats.begin("lexing");
+		tokens.fill();
+		stats.end();
+		stats.size("tokens", tokens.size());
+		stats.begin("parsing");
+		ParseTree st = parser.prog();
+		stats.end();
+		log("You had "+lexer.lexicalErrors+" lexical errors and "+
+			parser.getNumberOfSyntaxErrors()+" syntax errors.\n");
+
+		log("Generating AST.");
+		stats.begin("ast");
+		ASTGenerationSTVisitor visitor = new ASTGenerationSTVisitor(); // use true to visualize the ST
+		Node ast = visitor.visit(st);
+		stats.end();
+		stats.size("astNodes", astNodes(ast));
+		log("");
+
+		log("Enriching AST via symbol table.");
+		stats.begin("symtable");
+		SymbolTableASTVisitor symtableVisitor = new SymbolTableASTVisitor(true);
+		symtableVisitor.visit(ast);
+		stats.end();
+		stats.size("symbolTableEntries", symtableVisitor.stEntries);
+		log("You had "+symtableVisitor.stErrors+" symbol table errors.\n");
+
+		if (verbose) {
+			System.out.println("Visualizing Enriched AST.");
+			new PrintEASTVisitor().visit(ast);
+			System.out.println("");
+		}
+
+		log("Checking Types.");
+		stats.begin("typecheck");
+		try {
+			TypeCheckEASTVisitor typeCheckVisitor = new TypeCheckEASTVisitor(context);
+			TypeNode mainType = typeCheckVisitor.visit(ast);
+			stats.end();
+			if (verbose) {
+				System.out.print("Type of main program expression is: ");
+				new PrintEASTVisitor().visit(mainType);
+			}
+		} catch (IncomplException e) {
+			log("Could not determine main program expression type due to errors detected before type checking.");
+		} catch (TypeException e) {
+			context.typeErrors++;
+			log("Type checking error in main program expression: "+e.text);
+		} finally {
+			if (stats.running()) stats.end();
+		}
+		log("You had "+context.typeErrors+" type checking errors.\n");
+
+		int frontEndErrors = lexer.lexicalErrors+parser.getNumberOfSyntaxErrors()+symtableVisitor.stErrors+context.typeErrors;
+		log("You had a total of "+frontEndErrors+" front-end errors.\n");
+
+		if (frontEndErrors > 0) return new Result(frontEndErrors, null, null, stats);
+
+		if (optimize && inlineSize > 0) {
+			log("Inlining functions.");
+			stats.begin("inlining");
+			InliningEASTVisitor inliningVisitor = new InliningEASTVisitor(inlineSize);
+			ast = inliningVisitor.visit(ast);
+			stats.end();
+			log("Inlined "+inliningVisitor.inlinedCalls+" calls.");
+			for (String call : inliningVisitor.report) log("  "+call);
+			log("");
+		}
+
+		if (optimize) {
+			log("Folding constants.");
+			stats.begin("folding");
+			ConstantFoldingEASTVisitor foldingVisitor = new ConstantFoldingEASTVisitor();
+			ast = foldingVisitor.visit(ast);
+			stats.end();
+			log("Constant folding removed "+foldingVisitor.removedNodes+" AST nodes.\n");
+		}
+
+		log("Generating code.");
+		stats.begin("codegen");
+		CodeGenerationASTVisitor codeVisitor = new CodeGenerationASTVisitor(context);
+		codeVisitor.fused = fused;
+		codeVisitor.display = display;
+		codeVisitor.tailCalls = tailCalls;
+		codeVisitor.visit(ast);
+		stats.end();
+		log("Turned "+codeVisitor.tailCallReport.size()+" tail calls into jumps.");
+		for (String call : codeVisitor.tailCallReport) log("  "+call);
+		CodeBuffer code = codeVisitor.getCode();
+		if (optimize) {
+			stats.begin("peephole");
+			PeepholeOptimizer optimizer = new PeepholeOptimizer();
+			code = optimizer.optimize(code);
+			stats.end();
+			log("Peephole optimizer removed "+optimizer.removed+" instructions.");
+		}
+		log("");
+
+		int instructions = 0;
+		for (CodeBuffer.Line l : code.lines()) if (!l.isLabel()) instructions++;
+		stats.size("instructions", instructions);
+
+		log("Assembling generated code.");
+		stats.begin("assembly");
+		svm.Assembler assembler = new svm.Assembler();
+		int line = 0;
+		for (CodeBuffer.Line l : code.lines()) {
+			if (l.blankBefore) line++;
+			if (l.isLabel()) assembler.label(l.label, line);
+			else assembler.instruction(l.op, l.arg, line);
+			line++;
+		}
+		assembler.code(); // resolves labels
+		stats.end();
+		log("You had: "+assembler.errors()+" assembly errors.\n");
+		if (assembler.errors() > 0) return new Result(assembler.errors(), code, null, stats);
+		stats.size("codeWords", assembler.size());
+
+		return new Result(0, code, assembler, stats);
+	}
+
+	// number of nodes of an AST: declarations, parameters and expressions
+	static int astNodes(Node n) {
+		int count = 1;
+		if (n instanceof ProgLetInNode) {
+			for (Node dec : ((ProgLetInNode) n).declist) count += astNodes(dec);
+			count += astNodes(((ProgLetInNode) n).exp);
+		} else if (n instanceof ProgNode) {
+			count += astNodes(((ProgNode) n).exp);
+		} else if (n instanceof FunNode) {
+			count += ((FunNode) n).parlist.size();
+			for (Node dec : ((FunNode) n).declist) count += astNodes(dec);
+			count += astNodes(((FunNode) n).exp);
+		} else if (n instanceof VarNode) {
+			count += astNodes(((VarNode) n).exp);
+		} else if (n instanceof ClassNode) {
+			count += ((ClassNode) n).fieldList.size();
+			for (Node m : ((ClassNode) n).methodList) count += astNodes(m);
+		} else if (n instanceof MethodNode) {
+			count += ((MethodNode) n).parlist.size();
+			for (Node dec : ((MethodNode) n).declist) count += astNodes(dec);
+			count += astNodes(((MethodNode) n).exp);
+		} else {
+			for (Node c : ConstantFoldingEASTVisitor.children(n)) count += astNodes(c);
+		}
+		return count;
+	}
+}
@@ -0,0 +1,62 @@
+package compiler;
+
+import java.io.*;
+
+/**
+ * Checks the garbage collector of svm.GCExecuteVM on a program that needs a pointer on the
+ * stack to be forwarded: it must print 42, as svm.ExecuteVM does, in one collection
+ * reclaiming 1102 words.
+ *
+ * The program allocates the blocks A = [0,2) dead, B = [2,8) live (B[0] = 42), C = [8,10)
+ * live and D = [10,1110) dead, keeping a pointer to B on the stack, then calls f: the heap has
+ * grown past the threshold, so the call collects, B moves to 0 and C to 6, and the pointer to
+ * B has to be forwarded to 0 before it is loaded and printed.
+ * Exits with status 1 if any result differs.
+ */
+public class GCCheck {
+
+	private static final String PROGRAM = String.join("\n",
+		"lhp", "push 2", "add", "shp", "b allocB",
+		"allocB:", "push 42", "lhp", "sw", "lhp", "lhp", "push 6", "add", "shp", "b allocC",
+		"allocC:", "lhp", "lhp", "push 2", "add", "shp", "b allocD",
+		"allocD:", "lhp", "push 1100", "add", "shp",
+		"push f", "js", "pop", "lw", "print", "halt",
+		"f:", "lra", "js");
+
+	private static final String OUTPUT = "42";
+	private static final int COLLECTIONS = 1;
+	private static final long RECLAIMED_WORDS = 1102;
+
+	public static void main(String[] args) throws Exception {
+		svm.Assembler assembler = svm.Assembler.assemble(PROGRAM);
+		if (assembler.errors() > 0) throw new IllegalStateException(assembler.errors() + " errors in the program");
+		int[] code = assembler.code();
+
+		PrintStream out = System.out;
+		ByteArrayOutputStream plain = new ByteArrayOutputStream(), collected = new ByteArrayOutputStream();
+		svm.GCExecuteVM vm = new svm.GCExecuteVM(code, svm.ExecuteVM.MEMSIZE);
+		try {
+			System.setOut(new PrintStream(plain, true));
+			new svm.ExecuteVM(code).cpu();
+			System.setOut(new PrintStream(collected, true));
+			vm.cpu();
+		} finally {
+			System.setOut(out);
+		}
+
+		int differences = 0;
+		differences += check("svm output", plain.toString().trim(), OUTPUT);
+		differences += check("svm --gc output", collected.toString().trim(), OUTPUT);
+		differences += check("collections", vm.collections(), COLLECTIONS);
+		differences += check("reclaimed words", vm.reclaimedWords(), RECLAIMED_WORDS);
+		out.println(vm.gcStats() + ": " + differences + " differences");
+		if (differences > 0) System.exit(1);
+	}
+
+	// 1 (printing both) if the result differs from the expected one, 0 if not
+	private static int check(String name, Object result, Object expected) {
+		if (result.equals(expected)) return 0;
+		System.out.printf("%-24s differs: %s instead of %s%n", name, result, expected);
+		return 1;
+	}
+}
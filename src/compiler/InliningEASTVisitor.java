@@ -0,0 +1,338 @@
+package compiler;
+
+import java.util.*;
+import compiler.AST.*;
+import compiler.exc.*;
+import compiler.lib.*;
+
+//visitNode(n) returns n with the calls to small non-recursive functions replaced by their bodies
+//(n itself if nothing changed). A function is inlined when:
+//- it has no local declarations (its body only refers to its parameters and to outer declarations)
+//- its body has at most maxSize nodes and does not call the function itself
+//- the arguments can be substituted without changing what is evaluated and in which order: pure
+//  arguments (constants and variables, or other pure expressions used at most once) and at most
+//  one argument with effects, whose parameter is used once and is the first thing the body evaluates
+//Bodies are taken after inlining the calls they contain, and never inlined into themselves.
+//References to outer declarations keep their STentry and get the nesting level of the call.
+//Runs on the enriched AST after type checking, before constant folding.
+public class InliningEASTVisitor extends BaseEASTVisitor<Node,VoidException> {
+
+	final int maxSize; // max number of nodes of an inlined body
+	int inlinedCalls = 0;
+	final List<String> report = new ArrayList<>(); // one line for each inlined call
+
+	private final Map<STentry, FunNode> inlinable = new HashMap<>(); // functions that can be inlined, by entry
+
+	InliningEASTVisitor(int maxSize) { this.maxSize = maxSize; }
+	InliningEASTVisitor(int maxSize, boolean debug) { super(false,debug); this.maxSize = maxSize; } // enables print for debugging
+
+	private static <T extends Node> T line(T n, Node from) {
+		n.setLine(from.getLine());
+		return n;
+	}
+
+	private static boolean isTrivial(Node n) {
+		return n instanceof IdNode || n instanceof IntNode || n instanceof BoolNode;
+	}
+
+	// number of references to parameter param (index from 0) of a function whose body is at level bodyNl
+	private static int uses(Node exp, int bodyNl, int param) {
+		if (exp instanceof IdNode) return isParam((IdNode) exp, bodyNl, param) ? 1 : 0;
+		int uses = 0;
+		for (Node c : ConstantFoldingEASTVisitor.children(exp)) uses += uses(c, bodyNl, param);
+		return uses;
+	}
+
+	private static boolean isParam(IdNode n, int bodyNl, int param) {
+		return n.entry.nl == bodyNl && n.entry.offset == param + 1; // parameters are at offsets 1, 2, ...
+	}
+
+	private static boolean callsOrObjects(Node exp, STentry fun) {
+		if (exp instanceof CallNode && ((CallNode) exp).entry == fun) return true;
+		if (exp instanceof ClassCallNode || exp instanceof NewNode || exp instanceof EmptyNode) return true;
+		for (Node c : ConstantFoldingEASTVisitor.children(exp))
+			if (callsOrObjects(c, fun)) return true;
+		return false;
+	}
+
+	private static final int NONE = 0, FOUND = 1, BLOCKED = 2;
+
+	// walks exp in evaluation order (the one of CodeGenerationASTVisitor): FOUND if parameter param is
+	// reached unconditionally before any effect, BLOCKED if an effect or a conditional part comes first
+	private static int firstUse(Node exp, int bodyNl, int param) {
+		if (exp instanceof IdNode) return isParam((IdNode) exp, bodyNl, param) ? FOUND : NONE;
+		if (exp instanceof IntNode || exp instanceof BoolNode) return NONE;
+		List<Node> operands;
+		if (exp instanceof CallNode) {
+			operands = new ArrayList<>(((CallNode) exp).arglist);
+			Collections.reverse(operands); // arguments are evaluated from the last one
+		} else if (exp instanceof GreaterEqualNode) {
+			operands = List.of(((GreaterEqualNode) exp).right, ((GreaterEqualNode) exp).left);
+		} else if (exp instanceof IfNode) {
+			operands = List.of(((IfNode) exp).cond);
+		} else if (exp instanceof AndNode) {
+			operands = List.of(((AndNode) exp).left);
+		} else if (exp instanceof OrNode) {
+			operands = List.of(((OrNode) exp).left);
+		} else {
+			operands = ConstantFoldingEASTVisitor.children(exp);
+		}
+		for (Node o : operands) {
+			int r = firstUse(o, bodyNl, param);
+			if (r != NONE) return r;
+		}
+		// what follows the operands: the branches of if, the right operand of && and ||, the effect of
+		// print and calls, the division (which may fail)
+		return ConstantFoldingEASTVisitor.pureSize(exp) >= 0 && uses(exp, bodyNl, param) == 0 ? NONE : BLOCKED;
+	}
+
+	// the body of f with parameters replaced by the arguments, for a call at nesting level nl
+	private Node substitute(Node exp, int bodyNl, List<Node> args, int nl) {
+		if (exp instanceof IdNode) {
+			IdNode n = (IdNode) exp;
+			if (n.entry.nl == bodyNl) return args.get(n.entry.offset - 1);
+			IdNode id = line(new IdNode(n.id), n);
+			id.entry = n.entry;
+			id.nl = nl;
+			return id;
+		}
+		if (exp instanceof CallNode) {
+			CallNode n = (CallNode) exp;
+			CallNode c = line(new CallNode(n.id, substitute(n.arglist, bodyNl, args, nl)), n);
+			c.entry = n.entry;
+			c.nl = nl;
+			return c;
+		}
+		if (exp instanceof IntNode || exp instanceof BoolNode) return exp;
+		List<Node> c = substitute(ConstantFoldingEASTVisitor.children(exp), bodyNl, args, nl);
+		if (exp instanceof PlusNode) return line(new PlusNode(c.get(0), c.get(1)), exp);
+		if (exp instanceof MinusNode) return line(new MinusNode(c.get(0), c.get(1)), exp);
+		if (exp instanceof TimesNode) return line(new TimesNode(c.get(0), c.get(1)), exp);
+		if (exp instanceof DivNode) return line(new DivNode(c.get(0), c.get(1)), exp);
+		if (exp instanceof EqualNode) return line(new EqualNode(c.get(0), c.get(1)), exp);
+		if (exp instanceof LessEqualNode) return line(new LessEqualNode(c.get(0), c.get(1)), exp);
+		if (exp instanceof GreaterEqualNode) return line(new GreaterEqualNode(c.get(0), c.get(1)), exp);
+		if (exp instanceof AndNode) return line(new AndNode(c.get(0), c.get(1)), exp);
+		if (exp instanceof OrNode) return line(new OrNode(c.get(0), c.get(1)), exp);
+		if (exp instanceof NotNode) return line(new NotNode(c.get(0)), exp);
+		if (exp instanceof IfNode) return line(new IfNode(c.get(0), c.get(1), c.get(2)), exp);
+		if (exp instanceof PrintNode) return line(new PrintNode(c.get(0)), exp);
+		throw new UnimplException();
+	}
+
+	private List<Node> substitute(List<Node> exps, int bodyNl, List<Node> args, int nl) {
+		List<Node> result = new ArrayList<>();
+		for (Node e : exps) result.add(substitute(e, bodyNl, args, nl));
+		return result;
+	}
+
+	// whether the arguments of a call to f can replace its parameters
+	private static boolean substitutable(FunNode f, List<Node> args) {
+		int bodyNl = f.entry.nl + 1;
+		int effects = 0;
+		for (int i = 0; i < args.size(); i++) {
+			Node arg = args.get(i);
+			int uses = uses(f.exp, bodyNl, i);
+			if (ConstantFoldingEASTVisitor.pureSize(arg) >= 0) {
+				if (uses > 1 && !isTrivial(arg)) return false; // would be computed more than once
+			} else if (++effects > 1 || uses != 1 || firstUse(f.exp, bodyNl, i) != FOUND) return false;
+		}
+		return true;
+	}
+
+	private List<DecNode> inlineDecs(List<DecNode> decs) {
+		List<DecNode> result = new ArrayList<>();
+		for (DecNode dec : decs) result.add((DecNode) visit(dec));
+		return result;
+	}
+
+	private List<Node> inlineArgs(List<Node> args) {
+		List<Node> result = new ArrayList<>();
+		for (Node arg : args) result.add(visit(arg));
+		return result;
+	}
+
+	@Override
+	public Node visitNode(ProgLetInNode n) {
+		if (print) printNode(n);
+		List<DecNode> declist = inlineDecs(n.declist);
+		Node exp = visit(n.exp);
+		if (declist.equals(n.declist) && exp == n.exp) return n;
+		return line(new ProgLetInNode(declist, exp), n);
+	}
+
+	@Override
+	public Node visitNode(ProgNode n) {
+		if (print) printNode(n);
+		Node exp = visit(n.exp);
+		return exp == n.exp ? n : line(new ProgNode(exp), n);
+	}
+
+	@Override
+	public Node visitNode(FunNode n) {
+		if (print) printNode(n,n.id);
+		List<DecNode> declist = inlineDecs(n.declist);
+		Node exp = visit(n.exp); // n is not inlinable yet: recursive calls are kept
+		FunNode f = n;
+		if (!declist.equals(n.declist) || exp != n.exp) {
+			f = line(new FunNode(n.id, n.retType, n.parlist, declist, exp), n);
+			f.entry = n.entry;
+		}
+		if (f.declist.isEmpty() && ConstantFoldingEASTVisitor.size(f.exp) <= maxSize && !callsOrObjects(f.exp, f.entry))
+			inlinable.put(f.entry, f);
+		return f;
+	}
+
+	@Override
+	public Node visitNode(VarNode n) {
+		if (print) printNode(n,n.id);
+		Node exp = visit(n.exp);
+		return exp == n.exp ? n : line(new VarNode(n.id, n.getType(), exp), n);
+	}
+
+	@Override
+	public Node visitNode(PrintNode n) {
+		if (print) printNode(n);
+		Node exp = visit(n.exp);
+		return exp == n.exp ? n : line(new PrintNode(exp), n);
+	}
+
+	@Override
+	public Node visitNode(IfNode n) {
+		if (print) printNode(n);
+		Node cond = visit(n.cond), th = visit(n.th), el = visit(n.el);
+		if (cond == n.cond && th == n.th && el == n.el) return n;
+		return line(new IfNode(cond, th, el), n);
+	}
+
+	@Override
+	public Node visitNode(EqualNode n) {
+		if (print) printNode(n);
+		Node l = visit(n.left), r = visit(n.right);
+		return l == n.left && r == n.right ? n : line(new EqualNode(l, r), n);
+	}
+
+	@Override
+	public Node visitNode(LessEqualNode n) {
+		if (print) printNode(n);
+		Node l = visit(n.left), r = visit(n.right);
+		return l == n.left && r == n.right ? n : line(new LessEqualNode(l, r), n);
+	}
+
+	@Override
+	public Node visitNode(GreaterEqualNode n) {
+		if (print) printNode(n);
+		Node l = visit(n.left), r = visit(n.right);
+		return l == n.left && r == n.right ? n : line(new GreaterEqualNode(l, r), n);
+	}
+
+	@Override
+	public Node visitNode(PlusNode n) {
+		if (print) printNode(n);
+		Node l = visit(n.left), r = visit(n.right);
+		return l == n.left && r == n.right ? n : line(new PlusNode(l, r), n);
+	}
+
+	@Override
+	public Node visitNode(MinusNode n) {
+		if (print) printNode(n);
+		Node l = visit(n.left), r = visit(n.right);
+		return l == n.left && r == n.right ? n : line(new MinusNode(l, r), n);
+	}
+
+	@Override
+	public Node visitNode(TimesNode n) {
+		if (print) printNode(n);
+		Node l = visit(n.left), r = visit(n.right);
+		return l == n.left && r == n.right ? n : line(new TimesNode(l, r), n);
+	}
+
+	@Override
+	public Node visitNode(DivNode n) {
+		if (print) printNode(n);
+		Node l = visit(n.left), r = visit(n.right);
+		return l == n.left && r == n.right ? n : line(new DivNode(l, r), n);
+	}
+
+	@Override
+	public Node visitNode(AndNode n) {
+		if (print) printNode(n);
+		Node l = visit(n.left), r = visit(n.right);
+		return l == n.left && r == n.right ? n : line(new AndNode(l, r), n);
+	}
+
+	@Override
+	public Node visitNode(OrNode n) {
+		if (print) printNode(n);
+		Node l = visit(n.left), r = visit(n.right);
+		return l == n.left && r == n.right ? n : line(new OrNode(l, r), n);
+	}
+
+	@Override
+	public Node visitNode(NotNode n) {
+		if (print) printNode(n);
+		Node exp = visit(n.exp);
+		return exp == n.exp ? n : line(new NotNode(exp), n);
+	}
+
+	@Override
+	public Node visitNode(CallNode n) {
+		if (print) printNode(n,n.id);
+		List<Node> arglist = inlineArgs(n.arglist);
+		FunNode f = inlinable.get(n.entry);
+		if (f != null && substitutable(f, arglist)) {
+			inlinedCalls++;
+			report.add("call to "+n.id+" at line "+n.getLine()+" ("+ConstantFoldingEASTVisitor.size(f.exp)+" nodes)");
+			return substitute(f.exp, f.entry.nl + 1, arglist, n.nl);
+		}
+		if (arglist.equals(n.arglist)) return n;
+		CallNode c = line(new CallNode(n.id, arglist), n);
+		c.entry = n.entry;
+		c.nl = n.nl;
+		return c;
+	}
+
+	@Override
+	public Node visitNode(IdNode n) {
+		if (print) printNode(n,n.id);
+		return n;
+	}
+
+	@Override
+	public Node visitNode(BoolNode n) {
+		if (print) printNode(n,n.val.toString());
+		return n;
+	}
+
+	@Override
+	public Node visitNode(IntNode n) {
+		if (print) printNode(n,n.val.toString());
+		return n;
+	}
+
+	// OBJECT-ORIENTED EXTENSION: methods and their calls are not inlined
+
+	@Override
+	public Node visitNode(ClassNode n) {
+		if (print) printNode(n,n.id);
+		return n;
+	}
+
+	@Override
+	public Node visitNode(ClassCallNode n) {
+		if (print) printNode(n,n.id1+"."+n.id2);
+		return n;
+	}
+
+	@Override
+	public Node visitNode(NewNode n) {
+		if (print) printNode(n,n.id);
+		return n;
+	}
+
+	@Override
+	public Node visitNode(EmptyNode n) {
+		if (print) printNode(n);
+		return n;
+	}
+}
@@ -0,0 +1,102 @@
+package compiler;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import org.antlr.v4.runtime.*;
+
+/**
+ * Checks that compilations are independent (see CompilerContext): the inputs are compiled one
+ * after the other and then all together by FoolCompiler.compileAll on a pool of --threads
+ * threads (8 by default), and the two runs must give the same errors, assembly text and code.
+ *
+ * Inputs are the FOOL files given on the command line (the .fool files of the current directory
+ * if none) plus the programs generated by Benchmark of the sizes given by --sizes and a program
+ * with type errors, each one compiled --repeat times (10 by default) so that the same source is
+ * compiled by several threads at once. Inputs whose compilation throws are skipped.
+ * Exits with status 1 if any result differs.
+ */
+public class ParallelCheck {
+
+	public static void main(String[] args) throws Exception {
+		int threads = 8, repeat = 10;
+		int[] sizes = {10, 100, 1000};
+		List<String> files = new ArrayList<>();
+		for (String arg : args)
+			if (arg.startsWith("--threads=")) threads = Integer.parseInt(arg.substring("--threads=".length()));
+			else if (arg.startsWith("--repeat=")) repeat = Integer.parseInt(arg.substring("--repeat=".length()));
+			else if (arg.startsWith("--sizes=")) sizes = Arrays.stream(arg.substring("--sizes=".length()).split(","))
+					.filter(x -> !x.isEmpty()).mapToInt(Integer::parseInt).toArray();
+			else files.add(arg);
+		if (files.isEmpty())
+			try (DirectoryStream<Path> dir = Files.newDirectoryStream(Paths.get("."), "*.fool")) {
+				for (Path p : dir) files.add(p.toString());
+			}
+		Collections.sort(files);
+
+		Map<String,String> inputs = new LinkedHashMap<>();
+		for (String f : files) inputs.put(Paths.get(f).getFileName().toString(), new String(Files.readAllBytes(Paths.get(f))));
+		for (int size : sizes) inputs.put("generated-" + size, Benchmark.generate(size));
+		inputs.put("type-errors", "let fun f:bool(x:int) x; var y:bool = 3; in if 3 then {1} else {2};");
+
+		PrintStream out = System.out, err = System.err;
+		System.setOut(new PrintStream(OutputStream.nullOutputStream())); // compiler messages
+		System.setErr(new PrintStream(OutputStream.nullOutputStream()));
+		FoolCompiler compiler = new FoolCompiler();
+		List<String> names = new ArrayList<>();
+		List<FoolCompiler.Result> sequential = new ArrayList<>();
+		List<CharStream> sources = new ArrayList<>();
+		long parallelTime, sequentialTime = 0;
+		try {
+			for (Map.Entry<String,String> in : inputs.entrySet()) {
+				FoolCompiler.Result result;
+				long start = System.nanoTime();
+				try {
+					result = compiler.compile(in.getValue());
+				} catch (RuntimeException e) {
+					out.printf("%-24s skipped: %s%n", in.getKey(), e);
+					continue;
+				}
+				sequentialTime += (System.nanoTime() - start) * repeat;
+				for (int r = 0; r < repeat; r++) {
+					names.add(in.getKey());
+					sequential.add(result);
+					sources.add(CharStreams.fromString(in.getValue()));
+				}
+			}
+			ExecutorService pool = Executors.newFixedThreadPool(threads);
+			long start = System.nanoTime();
+			List<FoolCompiler.Result> parallel;
+			try {
+				parallel = compiler.compileAll(sources, pool);
+			} finally {
+				pool.shutdown();
+			}
+			parallelTime = System.nanoTime() - start;
+
+			int differences = 0;
+			for (int i = 0; i < sequential.size(); i++) {
+				String difference = difference(sequential.get(i), parallel.get(i));
+				if (difference != null) {
+					out.printf("%-24s differs: %s%n", names.get(i), difference);
+					differences++;
+				}
+			}
+			out.printf("%d compilations on %d threads (%.1f ms, sequentially about %.1f ms): %d differences%n",
+					sequential.size(), threads, parallelTime / 1e6, sequentialTime / 1e6, differences);
+			if (differences > 0) System.exit(1);
+		} finally {
+			System.setOut(out);
+			System.setErr(err);
+		}
+	}
+
+	// what differs between two results of the same source, null if nothing
+	private static String difference(FoolCompiler.Result a, FoolCompiler.Result b) {
+		if (a.errors != b.errors) return "errors " + a.errors + " and " + b.errors;
+		if ((a.asm == null) != (b.asm == null) || a.asm != null && !a.asm.toString().equals(b.asm.toString())) return "asm";
+		if (!Arrays.equals(a.code, b.code)) return "code";
+		return null;
+	}
+}
@@ -0,0 +1,274 @@
+package compiler;
+
+import java.util.*;
+import compiler.lib.*;
+
+/**
+ * Peephole optimizer over the SVM code buffer produced by CodeGenerationASTVisitor,
+ * applied before the code is assembled.
+ *
+ * Rewrites are repeated until no more apply:
+ * - "lfp stm ltm ltm" (duplication through $tm in calls) becomes "lfp lfp"
+ * - a 0/1 value built by a comparison and immediately tested by "push 1 beq" / "push 0 beq"
+ *   (if conditions, not) becomes a direct jump to the target
+ * - conditional branches on two constants become "b" or disappear
+ * - "push 0 add", "push 0 sub", "push 1 mult", "push 1 div" and "push n pop" disappear
+ * - jumps to jumps are redirected to the final target, jumps to the next instruction removed
+ * - code following "b", "tjs" or "halt" up to the next label is removed (unreachable)
+ * - labels that are no longer referenced are removed
+ *
+ * $tm is only used to duplicate values within fixed instruction sequences and is always set
+ * by "stm" before being read, so dropping "stm ltm ltm" does not change program behavior.
+ *
+ * The lines referencing each label are indexed, so renaming a label costs the number of its
+ * references, and deleted lines are compacted once per pass: a pass takes time linear in the
+ * code size plus the length of the jump chains it follows.
+ */
+public class PeepholeOptimizer {
+
+	int removed = 0; // number of instructions removed by the last optimize()
+
+	private static class Line {
+		String label;          // label definition "label:" (op and arg are null)
+		String op;
+		String arg;
+		boolean blankBefore;   // preceded by an empty line in the source (kept when printing)
+		boolean deleted;
+
+		Line(String label, String op, String arg) { this.label = label; this.op = op; this.arg = arg; }
+	}
+
+	private Line[] lines;
+	private final Map<String,Set<Line>> refs = new HashMap<>();    // lines referencing each label
+	private final Map<String,Integer> labelIndex = new HashMap<>(); // position of each label definition
+
+	CodeBuffer optimize(CodeBuffer code) {
+		lines = parse(code);
+		int before = instructionCount();
+		refs.clear();
+		for (Line l : lines) if (l.label == null) addRef(l);
+		boolean changed;
+		do {
+			labelIndex.clear();
+			for (int i = 0; i < lines.length; i++) if (lines[i].label != null) labelIndex.put(lines[i].label, i);
+			changed = false;
+			for (int i = 0; i < lines.length; i++)
+				if (!lines[i].deleted && rewrite(i)) changed = true;
+			compact();
+		} while (changed);
+		removed = before - instructionCount();
+		return print();
+	}
+
+	private static Line[] parse(CodeBuffer code) {
+		Line[] result = new Line[code.size()];
+		for (int i = 0; i < result.length; i++) {
+			CodeBuffer.Line c = code.get(i);
+			result[i] = new Line(c.label, c.op, c.arg);
+			result[i].blankBefore = c.blankBefore;
+		}
+		return result;
+	}
+
+	private CodeBuffer print() {
+		CodeBuffer code = new CodeBuffer();
+		for (Line l : lines) {
+			if (l.blankBefore) code.blank();
+			if (l.label != null) code.label(l.label);
+			else code.emit(l.op, l.arg);
+		}
+		return code;
+	}
+
+	private void compact() {
+		List<Line> live = new ArrayList<>(lines.length);
+		boolean blank = false;
+		for (Line l : lines)
+			if (l.deleted) blank |= l.blankBefore;
+			else {
+				l.blankBefore |= blank;
+				blank = false;
+				live.add(l);
+			}
+		lines = live.toArray(new Line[0]);
+	}
+
+	private int instructionCount() {
+		int n = 0;
+		for (Line l : lines) if (l.label == null) n++;
+		return n;
+	}
+
+	private static boolean isNumber(String s) { // -?[0-9]+
+		int i = s.startsWith("-") ? 1 : 0;
+		if (i == s.length()) return false;
+		for (; i < s.length(); i++)
+			if (s.charAt(i) < '0' || s.charAt(i) > '9') return false;
+		return true;
+	}
+
+	private static boolean isLabelRef(String arg) { // only labels are references (not "push n", "ret n", "call d o")
+		return arg != null && Character.isLetter(arg.charAt(0));
+	}
+
+	private void addRef(Line l) {
+		if (isLabelRef(l.arg)) refs.computeIfAbsent(l.arg, k -> new HashSet<>()).add(l);
+	}
+
+	private void removeRef(Line l) {
+		if (isLabelRef(l.arg)) refs.get(l.arg).remove(l);
+	}
+
+	private int refCount(String label) {
+		Set<Line> users = refs.get(label);
+		return users == null ? 0 : users.size();
+	}
+
+	private void delete(Line l) {
+		if (l.label == null) removeRef(l);
+		l.deleted = true;
+	}
+
+	private void setArg(Line l, String arg) {
+		removeRef(l);
+		l.arg = arg;
+		addRef(l);
+	}
+
+	// index of the k-th (0-based) non deleted line starting from i, -1 if none
+	private int next(int i, int k) {
+		for (; i < lines.length; i++)
+			if (!lines[i].deleted && k-- == 0) return i;
+		return -1;
+	}
+
+	private Line at(int i, int k) {
+		return lines[next(i, k)];
+	}
+
+	// checks that the lines starting at i are the given instructions ("op" or "op arg", "?" matches any arg, "L" a label)
+	private boolean matches(int i, String... pattern) {
+		for (int k = 0; k < pattern.length; k++) {
+			int j = next(i, k);
+			if (j < 0) return false;
+			Line l = lines[j];
+			String p = pattern[k];
+			if (p.equals("L")) { if (l.label == null) return false; continue; }
+			if (l.label != null) return false;
+			int space = p.indexOf(' ');
+			if (!l.op.equals(space < 0 ? p : p.substring(0, space))) return false;
+			if (space >= 0 && p.charAt(space+1) != '?' && !p.substring(space+1).equals(l.arg)) return false;
+		}
+		return true;
+	}
+
+	private void renameLabel(String from, String to) {
+		Set<Line> users = refs.remove(from);
+		if (users == null) return;
+		for (Line l : users) {
+			l.arg = to;
+			addRef(l);
+		}
+	}
+
+	// first instruction reached when jumping to label, null if the label is not defined
+	private Line target(String label) {
+		Integer p = labelIndex.get(label);
+		if (p == null) return null;
+		for (int k = p; k < lines.length; k++)
+			if (!lines[k].deleted && lines[k].label == null) return lines[k];
+		return null;
+	}
+
+	// tries the rewrite rules at position i, returns true if the code changed
+	private boolean rewrite(int i) {
+		Line l = lines[i];
+
+		if (l.label != null) {
+			if (refCount(l.label) == 0) { // unreferenced label
+				delete(l);
+				return true;
+			}
+			return false;
+		}
+
+		// value duplication through $tm
+		if (matches(i, "lfp", "stm", "ltm", "ltm")) {
+			at(i,1).op = "lfp";
+			delete(at(i,3));
+			delete(at(i,2));
+			return true;
+		}
+
+		// 0/1 value tested right away: "push 0 b l2 l1: push 1 l2:" followed by "push 1 beq L" or "push 0 beq L"
+		if (matches(i, "push 0", "b ?", "L", "push 1", "L", "push ?", "beq ?")
+				&& at(i,1).arg.equals(at(i,4).label) && refCount(at(i,4).label) == 1
+				&& !at(i,2).label.equals(at(i,6).arg)) {
+			String l1 = at(i,2).label, target = at(i,6).arg;
+			if (at(i,5).arg.equals("1")) { // jump to target when the value is 1, i.e. when coming from l1
+				Line[] block = {at(i,0), at(i,1), at(i,2), at(i,3), at(i,4), at(i,5), at(i,6)};
+				for (Line b : block) delete(b);
+				renameLabel(l1, target);
+				return true;
+			}
+			if (at(i,5).arg.equals("0")) { // jump to target when the value is 0, i.e. falling through
+				Line[] block = {at(i,0), at(i,3), at(i,4), at(i,5), at(i,6)};
+				setArg(at(i,1), target);
+				for (Line b : block) delete(b);
+				return true;
+			}
+		}
+
+		// branches on constants
+		if (matches(i, "push ?", "push ?", "beq ?") || matches(i, "push ?", "push ?", "bleq ?")) {
+			String a = l.arg, b = at(i,1).arg;
+			if (isNumber(a) && isNumber(b)) {
+				int v2 = Integer.parseInt(a), v1 = Integer.parseInt(b);
+				Line branch = at(i,2);
+				boolean taken = branch.op.equals("beq") ? v2 == v1 : v2 <= v1;
+				delete(at(i,1));
+				delete(l);
+				if (taken) branch.op = "b";
+				else delete(branch);
+				return true;
+			}
+		}
+
+		// neutral operations
+		if (matches(i, "push 0", "add") || matches(i, "push 0", "sub")
+				|| matches(i, "push 1", "mult") || matches(i, "push 1", "div") || matches(i, "push ?", "pop")) {
+			delete(at(i,1));
+			delete(l);
+			return true;
+		}
+
+		if ((l.op.equals("b") || l.op.equals("beq") || l.op.equals("bleq")) && l.arg != null) {
+			// jump to jump (following the chain, unless it loops)
+			String dest = l.arg;
+			Set<String> seen = new HashSet<>();
+			boolean loops = false;
+			for (Line t; (t = target(dest)) != null && t.op.equals("b") && t.arg != null; dest = t.arg)
+				if (!seen.add(dest)) { loops = true; break; }
+			if (!loops && !dest.equals(l.arg)) {
+				setArg(l, dest);
+				return true;
+			}
+			// jump to the next instruction
+			if (l.op.equals("b"))
+				for (int k = 1, j; (j = next(i, k)) >= 0 && lines[j].label != null; k++)
+					if (lines[j].label.equals(l.arg)) {
+						delete(l);
+						return true;
+					}
+		}
+
+		// unreachable code
+		if (l.op.equals("b") || l.op.equals("tjs") || l.op.equals("halt")) {
+			boolean changed = false;
+			for (int j; (j = next(i, 1)) >= 0 && lines[j].label == null; changed = true) delete(lines[j]);
+			return changed;
+		}
+
+		return false;
+	}
+}
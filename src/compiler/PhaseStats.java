@@ -0,0 +1,110 @@
+package compiler;
+
+import java.lang.management.ManagementFactory;
+import java.util.*;
+
+/**
+ * Wall time, CPU time and allocated bytes of the phases of a compilation (and of the execution
+ * of its code), plus the sizes of what they produced (tokens, AST nodes, ...).
+ *
+ * Phases are delimited by begin(name) and end() on the same thread, one at a time; CPU time and
+ * allocation are those of that thread, read through com.sun.management.ThreadMXBean (0 if the
+ * JVM does not support them).
+ */
+public class PhaseStats {
+
+	public static final class Phase {
+		public final String name;
+		public final long wallNanos, cpuNanos, allocatedBytes;
+
+		Phase(String name, long wallNanos, long cpuNanos, long allocatedBytes) {
+			this.name = name; this.wallNanos = wallNanos; this.cpuNanos = cpuNanos; this.allocatedBytes = allocatedBytes;
+		}
+	}
+
+	private static final com.sun.management.ThreadMXBean THREADS = threads();
+
+	private static com.sun.management.ThreadMXBean threads() {
+		java.lang.management.ThreadMXBean t = ManagementFactory.getThreadMXBean();
+		if (!(t instanceof com.sun.management.ThreadMXBean)) return null;
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) t;
+		if (!threads.isCurrentThreadCpuTimeSupported() || !threads.isThreadAllocatedMemorySupported()) return null;
+		threads.setThreadAllocatedMemoryEnabled(true);
+		return threads;
+	}
+
+	private final List<Phase> phases = new ArrayList<>();
+	private final Map<String, Long> sizes = new LinkedHashMap<>();
+
+	private String current;
+	private long wall, cpu, allocated;
+
+	public void begin(String name) {
+		if (current != null) end();
+		current = name;
+		allocated = allocatedBytes();
+		cpu = cpuNanos();
+		wall = System.nanoTime();
+	}
+
+	public void end() {
+		long w = System.nanoTime() - wall;
+		long c = cpuNanos() - cpu;
+		long a = allocatedBytes() - allocated;
+		phases.add(new Phase(current, w, c, a));
+		current = null;
+	}
+
+	public boolean running() {
+		return current != null;
+	}
+
+	public void size(String name, long value) {
+		sizes.put(name, value);
+	}
+
+	public List<Phase> phases() {
+		return Collections.unmodifiableList(phases);
+	}
+
+	public Map<String, Long> sizes() {
+		return Collections.unmodifiableMap(sizes);
+	}
+
+	private static long cpuNanos() {
+		return THREADS != null ? THREADS.getCurrentThreadCpuTime() : 0;
+	}
+
+	private static long allocatedBytes() {
+		return THREADS != null ? THREADS.getThreadAllocatedBytes(Thread.currentThread().getId()) : 0;
+	}
+
+	public String toTable() {
+		StringBuilder s = new StringBuilder();
+		s.append(String.format("%-14s %12s %12s %14s%n", "phase", "wall ms", "cpu ms", "allocated B"));
+		long w = 0, c = 0, a = 0;
+		for (Phase p : phases) {
+			s.append(String.format("%-14s %12.3f %12.3f %14d%n", p.name, p.wallNanos / 1e6, p.cpuNanos / 1e6, p.allocatedBytes));
+			w += p.wallNanos; c += p.cpuNanos; a += p.allocatedBytes;
+		}
+		s.append(String.format("%-14s %12.3f %12.3f %14d%n", "total", w / 1e6, c / 1e6, a));
+		for (Map.Entry<String, Long> e : sizes.entrySet())
+			s.append(String.format("%-22s %d%n", e.getKey(), e.getValue()));
+		return s.toString();
+	}
+
+	public String toJson() {
+		StringBuilder s = new StringBuilder("{\"phases\": [");
+		for (int i = 0; i < phases.size(); i++) {
+			Phase p = phases.get(i);
+			s.append(i > 0 ? ", " : "").append(String.format(
+				"{\"name\": \"%s\", \"wallNanos\": %d, \"cpuNanos\": %d, \"allocatedBytes\": %d}",
+				p.name, p.wallNanos, p.cpuNanos, p.allocatedBytes));
+		}
+		s.append("], \"sizes\": {");
+		int i = 0;
+		for (Map.Entry<String, Long> e : sizes.entrySet())
+			s.append(i++ > 0 ? ", " : "").append("\"").append(e.getKey()).append("\": ").append(e.getValue());
+		return s.append("}}").toString();
+	}
+}
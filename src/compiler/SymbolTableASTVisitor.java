@@ -13,6 +13,7 @@ public class SymbolTableASTVisitor extends BaseASTVisitor<Void,VoidException> {
     private int nestingLevel = 0; // current nesting level
     private int decOffset = -2; // counter for offset of local declarations at current nesting level
     int stErrors = 0;
+    int stEntries = 0; // number of entries created (one for each declaration, parameter and field)
 
     SymbolTableASTVisitor() {
     }
@@ -21,6 +22,11 @@ public class SymbolTableASTVisitor extends BaseASTVisitor<Void,VoidException> {
         super(debug);
     } // enables print for debugging
 
+    private STentry newEntry(int nl, TypeNode type, int offset) {
+        stEntries++;
+        return new STentry(nl, type, offset);
+    }
+
     private STentry stLookup(String id) {
         int j = nestingLevel;
         STentry entry = null;
@@ -53,7 +59,8 @@ public class SymbolTableASTVisitor extends BaseASTVisitor<Void,VoidException> {
         Map<String, STentry> hm = symTable.get(nestingLevel);
         List<TypeNode> parTypes = new ArrayList<>();
         for (ParNode par : n.parlist) parTypes.add(par.getType());
-        STentry entry = new STentry(nestingLevel, new ArrowTypeNode(parTypes, n.retType), decOffset--);
+        STentry entry = newEntry(nestingLevel, new ArrowTypeNode(parTypes, n.retType), decOffset--);
+        n.entry = entry;
         //inserimento di ID nella symtable
         if (hm.put(n.id, entry) != null) {
             System.out.println("Fun id " + n.id + " at line " + n.getLine() + " already declared");
@@ -68,7 +75,7 @@ public class SymbolTableASTVisitor extends BaseASTVisitor<Void,VoidException> {
 
         int parOffset = 1;
         for (ParNode par : n.parlist)
-            if (hmn.put(par.id, new STentry(nestingLevel, par.getType(), parOffset++)) != null) {
+            if (hmn.put(par.id, newEntry(nestingLevel, par.getType(), parOffset++)) != null) {
                 System.out.println("Par id " + par.id + " at line " + n.getLine() + " already declared");
                 stErrors++;
             }
@@ -85,7 +92,7 @@ public class SymbolTableASTVisitor extends BaseASTVisitor<Void,VoidException> {
         if (print) printNode(n);
         visit(n.exp);
         Map<String, STentry> hm = symTable.get(nestingLevel);
-        STentry entry = new STentry(nestingLevel, n.getType(), decOffset--);
+        STentry entry = newEntry(nestingLevel, n.getType(), decOffset--);
         //inserimento di ID nella symtable
         if (hm.put(n.id, entry) != null) {
             System.out.println("Var id " + n.id + " at line " + n.getLine() + " already declared");
@@ -238,7 +245,7 @@ public class SymbolTableASTVisitor extends BaseASTVisitor<Void,VoidException> {
         // Create a new ClassTypeNode with empty lists for fields and methods
         // These lists will be populated during the visit of class members
         ClassTypeNode classTypeNode = new ClassTypeNode(new ArrayList<>(), new ArrayList<>());
-        STentry entry = new STentry(0, classTypeNode, decOffset--);
+        STentry entry = newEntry(0, classTypeNode, decOffset--);
 
         // Insert the class identifier into the global symbol table (level 0)
         if (hm.put(n.id, entry) != null) {
@@ -258,7 +265,7 @@ public class SymbolTableASTVisitor extends BaseASTVisitor<Void,VoidException> {
         // Field offsets start at -1 and decrement (field 0 at offset -1, field 1 at offset -2, etc.)
         int fieldOffset  = -1;
         for (FieldNode field : n.fieldList) {
-            STentry fieldEntry = new STentry(nestingLevel, field.getType(), fieldOffset);
+            STentry fieldEntry = newEntry(nestingLevel, field.getType(), fieldOffset);
             if (virtualTable.put(field.id, fieldEntry) != null) {
                 System.out.println("Field id " + field.id + " at line " + n.getLine() + " already declared");
                 stErrors++;
@@ -293,7 +300,7 @@ public class SymbolTableASTVisitor extends BaseASTVisitor<Void,VoidException> {
         // Remember the method offset and create an entry with decOffset which start at 0 and goes upwards.
         // Save the current offset in the method node for the dispatch table
         n.offset = decOffset;
-        STentry entry = new STentry(nestingLevel, new ArrowTypeNode(parTypes, n.retType), decOffset++);
+        STentry entry = newEntry(nestingLevel, new ArrowTypeNode(parTypes, n.retType), decOffset++);
 
         // Insert the method in virtual table
         if (hm.put(n.id, entry) != null) {
@@ -311,7 +318,7 @@ public class SymbolTableASTVisitor extends BaseASTVisitor<Void,VoidException> {
 
         int parOffset = 1;
         for (ParNode par : n.parlist)
-            if (hmn.put(par.id, new STentry(nestingLevel, par.getType(), parOffset++)) != null) {
+            if (hmn.put(par.id, newEntry(nestingLevel, par.getType(), parOffset++)) != null) {
                 System.out.println("Par id " + par.id + " at line " + n.getLine() + " already declared");
                 stErrors++;
             }
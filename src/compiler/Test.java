@@ -1,83 +1,161 @@
 package compiler;
 
 import java.io.*;
+import java.nio.file.*;
+import java.util.*;
 import org.antlr.v4.runtime.*;
-import org.antlr.v4.runtime.tree.*;
-import compiler.lib.*;
-import compiler.exc.*;
 import visualsvm.*;
-import java.nio.file.*;
 
 public class Test {
     public static void main(String[] args) throws Exception {
    			
     	String fileName = "quicksort.fool";
+    	String vm = "visual"; // "visual" (GUI, the default when --vm is absent), "svm" (switch interpreter), "threaded" (pre-decoded interpreter),
+    	                      // "jvm" (compiled to JVM bytecode), "profile" (interpreter counting instructions and calls)
+    	                      // or "sample" (interpreter sampling the call stack into a .folded file for flame graphs)
+    	boolean optimize = true; // disabled by --no-opt
+    	boolean fused = true; // fused instructions lv, call and ret, disabled by --no-fuse
+    	boolean display = false; // display calling convention instead of access links, enabled by --display
+    	boolean tailCalls = true; // calls in tail position reusing the caller's frame, disabled by --no-tco
+    	int inlineSize = FoolCompiler.INLINE_SIZE; // max size of inlined function bodies, set by --inline=N (0: no inlining)
+    	boolean writeAsm = true; // disabled by --no-asm
+    	boolean writeObj = false; // enabled by --obj (binary object file, runnable passing the .svmo file name)
+    	int memSize = ExecuteVM.MEMSIZE; // words of VM memory, set by --mem=N
+    	boolean gc = false; // enabled by --gc (garbage collected heap, only with --vm=svm)
+    	int history = ExecuteVM.HISTORY; // steps the visual VM can undo without re-executing, set by --history=N
+    	long budget = 0; // max instructions run by one PLAY of the visual VM, set by --budget=N (0: no limit)
+    	int samplePeriod = svm.ProfilingExecuteVM.SAMPLE_PERIOD; // instructions between samples of --vm=sample, set by --sample-period=N
+    	String stats = null; // time, CPU and allocation of each phase and sizes, printed as a "table" by --stats or as "json" by --stats=json
+    	for (String arg : args)
+    		if (arg.startsWith("--vm=")) vm = arg.substring("--vm=".length());
+    		else if (arg.equals("--no-opt")) optimize = false;
+    		else if (arg.equals("--no-fuse")) fused = false;
+    		else if (arg.equals("--display")) display = true;
+    		else if (arg.equals("--no-tco")) tailCalls = false;
+    		else if (arg.startsWith("--inline=")) inlineSize = Integer.parseInt(arg.substring("--inline=".length()));
+    		else if (arg.equals("--no-asm")) writeAsm = false;
+    		else if (arg.equals("--obj")) writeObj = true;
+    		else if (arg.startsWith("--mem=")) memSize = Integer.parseInt(arg.substring("--mem=".length()));
+    		else if (arg.equals("--gc")) gc = true;
+    		else if (arg.startsWith("--history=")) history = Integer.parseInt(arg.substring("--history=".length()));
+    		else if (arg.startsWith("--budget=")) budget = Long.parseLong(arg.substring("--budget=".length()));
+    		else if (arg.startsWith("--sample-period=")) samplePeriod = Integer.parseInt(arg.substring("--sample-period=".length()));
+    		else if (arg.equals("--stats")) stats = "table";
+    		else if (arg.startsWith("--stats=")) stats = arg.substring("--stats=".length());
+    		else fileName = arg;
+    	if (!Arrays.asList("visual", "svm", "threaded", "jvm", "profile", "sample").contains(vm)) {
+    		System.out.println("Unknown VM \""+vm+"\": use --vm=visual, svm, threaded, jvm, profile or sample.");
+    		System.exit(1);
+    	}
+    	if (stats != null && !stats.equals("table") && !stats.equals("json")) {
+    		System.out.println("Unknown stats format \""+stats+"\": use --stats (or --stats=table) or --stats=json.");
+    		System.exit(1);
+    	}
+
+    	int[] code, sourceMap;
+    	List<String> listing;
+    	Map<String,Integer> labels;
+    	PhaseStats phaseStats = new PhaseStats();
+    	if (fileName.endsWith(".svmo")) { // precompiled program: only loaded, the listing is the .asm written with it
+    		svm.ObjectFile object = svm.ObjectFile.read(Paths.get(fileName));
+    		code = object.code;
+    		sourceMap = object.sourceMap;
+    		Path asm = Paths.get(fileName.substring(0, fileName.length()-".svmo".length())+".asm");
+    		listing = sourceMap != null && Files.exists(asm) ? Files.readAllLines(asm) : null;
+    		labels = object.labels;
+    		if (vm.equals("visual") && listing == null) {
+    			System.out.println("The visual VM needs a source map and the .asm listing of "+fileName+".");
+    			System.exit(1);
+    		}
+    	} else if (fileName.endsWith(".asm")) { // hand-written or previously generated assembly
+    		String asm = new String(Files.readAllBytes(Paths.get(fileName)));
+    		svm.Assembler assembler = svm.Assembler.assemble(asm);
+    		System.out.println("You had: "+assembler.lexicalErrors+" lexical errors and "+assembler.syntaxErrors+" syntax errors.\n");
+    		if (assembler.errors() > 0) System.exit(1);
+    		code = assembler.code();
+    		sourceMap = assembler.sourceMap();
+    		listing = Files.readAllLines(Paths.get(fileName));
+    		labels = assembler.labels();
+    	} else {
+    		FoolCompiler.Result result = new FoolCompiler(optimize, true).withFusedInstructions(fused).withDisplay(display).withTailCalls(tailCalls).withInlining(inlineSize).compile(CharStreams.fromFileName(fileName));
+    		phaseStats = result.stats;
+    		if (result.errors > 0) {
+    			printStats(stats, phaseStats);
+    			System.exit(1);
+    		}
+
+    		if (writeAsm) { // the assembly is kept in memory, the .asm file is only written for inspection
+    			BufferedWriter out = new BufferedWriter(new FileWriter(fileName+".asm"));
+    			result.asm.writeTo(out);
+    			out.close();
+    		}
+    		if (writeObj) result.toObjectFile(writeAsm).write(Paths.get(fileName+".svmo"));
+    		code = result.code;
+    		sourceMap = result.sourceMap;
+    		listing = result.asm.textLines();
+    		labels = result.labels;
+    	}
 
-    	CharStream chars = CharStreams.fromFileName(fileName);
-    	FOOLLexer lexer = new FOOLLexer(chars);
-    	CommonTokenStream tokens = new CommonTokenStream(lexer);
-    	FOOLParser parser = new FOOLParser(tokens);
-
-    	System.out.println("Generating ST via lexer and parser.");
-    	ParseTree st = parser.prog();
-    	System.out.println("You had "+lexer.lexicalErrors+" lexical errors and "+
-    		parser.getNumberOfSyntaxErrors()+" syntax errors.\n");
-
-    	System.out.println("Generating AST.");
-    	ASTGenerationSTVisitor visitor = new ASTGenerationSTVisitor(); // use true to visualize the ST
-    	Node ast = visitor.visit(st);
-    	System.out.println("");
-
-    	System.out.println("Enriching AST via symbol table.");
-    	SymbolTableASTVisitor symtableVisitor = new SymbolTableASTVisitor(true);
-    	symtableVisitor.visit(ast);
-    	System.out.println("You had "+symtableVisitor.stErrors+" symbol table errors.\n");
-
-    	System.out.println("Visualizing Enriched AST.");
-    	new PrintEASTVisitor().visit(ast);
-    	System.out.println("");
-
-    	System.out.println("Checking Types.");
+    	System.out.println("Running generated code via Stack Virtual Machine.");
+    	phaseStats.begin("execution");
     	try {
-    		TypeCheckEASTVisitor typeCheckVisitor = new TypeCheckEASTVisitor();
-    		TypeNode mainType = typeCheckVisitor.visit(ast);
-    		System.out.print("Type of main program expression is: ");
-    		new PrintEASTVisitor().visit(mainType);
-    	} catch (IncomplException e) {    		
-    		System.out.println("Could not determine main program expression type due to errors detected before type checking.");
-    	} catch (TypeException e) {
-    		System.out.println("Type checking error in main program expression: "+e.text); 
-    	}       	
-    	System.out.println("You had "+FOOLlib.typeErrors+" type checking errors.\n");
+    		switch (vm) { // both SVM grammars define the same instruction set, so the assembled code can be shared
+    			case "svm":
+    				if (!gc) {
+    					new svm.ExecuteVM(code, memSize).cpu();
+    					break;
+    				}
+    				svm.GCExecuteVM collected = new svm.GCExecuteVM(code, memSize);
+    				try {
+    					collected.cpu();
+    				} finally {
+    					System.out.println(collected.gcStats());
+    				}
+    				break;
+    			case "profile":
+    				svm.ProfilingExecuteVM profiler = new svm.ProfilingExecuteVM(code, labels, memSize);
+    				try {
+    					profiler.cpu();
+    				} finally {
+    					System.out.print(profiler.report(20));
+    				}
+    				break;
+    			case "sample":
+    				svm.ProfilingExecuteVM sampler = new svm.ProfilingExecuteVM(code, labels, memSize).withSampling(samplePeriod);
+    				try {
+    					sampler.cpu();
+    				} finally {
+    					Files.write(Paths.get(fileName+".folded"), sampler.folded().getBytes());
+    					System.out.println(sampler.samples().values().stream().mapToLong(Long::longValue).sum()+" samples written to "+fileName+".folded");
+    				}
+    				break;
+    			case "threaded":
+    				new svm.ThreadedExecuteVM(code, memSize).cpu();
+    				break;
+    			case "jvm":
+    				svm.CompiledCode compiled = svm.BytecodeCompiler.compile(code);
+    				if (compiled != null) compiled.withMemory(memSize).cpu();
+    				else {
+    					System.out.println("Program too large for the JVM backend, interpreting it.");
+    					new svm.ThreadedExecuteVM(code, memSize).cpu();
+    				}
+    				break;
+    			case "visual":
+    				new ExecuteVM(code,sourceMap,listing,memSize,history).withInstructionBudget(budget).cpu();
+    		}
+    	} catch (svm.SVMException e) {
+    		phaseStats.end();
+    		System.out.println("Runtime error: "+e.getMessage());
+    		printStats(stats, phaseStats);
+    		System.exit(1);
+    	}
+    	phaseStats.end();
+    	printStats(stats, phaseStats);
 
-    	int frontEndErrors = lexer.lexicalErrors+parser.getNumberOfSyntaxErrors()+symtableVisitor.stErrors+FOOLlib.typeErrors;
-		System.out.println("You had a total of "+frontEndErrors+" front-end errors.\n");
-		
-		if ( frontEndErrors > 0) System.exit(1);   
-
-    	System.out.println("Generating code.");
-    	String code = new CodeGenerationASTVisitor().visit(ast);        
-    	BufferedWriter out = new BufferedWriter(new FileWriter(fileName+".asm")); 
-    	out.write(code);
-    	out.close(); 
-    	System.out.println("");
-
-    	System.out.println("Assembling generated code.");
-    	CharStream charsASM = CharStreams.fromFileName(fileName+".asm");
-    	SVMLexer lexerASM = new SVMLexer(charsASM);
-    	CommonTokenStream tokensASM = new CommonTokenStream(lexerASM);
-    	SVMParser parserASM = new SVMParser(tokensASM);
-
-    	parserASM.assembly();
-
-    	// needed only for debug
-    	System.out.println("You had: "+lexerASM.lexicalErrors+" lexical errors and "+parserASM.getNumberOfSyntaxErrors()+" syntax errors.\n");
-    	if (lexerASM.lexicalErrors+parserASM.getNumberOfSyntaxErrors()>0) System.exit(1);
-
-    	System.out.println("Running generated code via Stack Virtual Machine.");
-        ExecuteVM vm = new ExecuteVM(parserASM.code,parserASM.sourceMap,Files.readAllLines(Paths.get(fileName+".asm")));
-    	vm.cpu();
+    }
 
+    private static void printStats(String format, PhaseStats stats) {
+    	if (format == null) return;
+    	System.out.print(format.equals("json") ? stats.toJson()+"\n" : stats.toTable());
     }
 }
-
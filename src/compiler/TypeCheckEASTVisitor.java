@@ -13,8 +13,11 @@ import static compiler.TypeRels.*;
 //visitSTentry(s) ritorna, per una STentry s, il tipo contenuto al suo interno
 public class TypeCheckEASTVisitor extends BaseEASTVisitor<TypeNode,TypeException> {
 
-	TypeCheckEASTVisitor() { super(true); } // enables incomplete tree exceptions 
-	TypeCheckEASTVisitor(boolean debug) { super(true,debug); } // enables print for debugging
+	private final CompilerContext context; // counts the type errors reported
+
+	TypeCheckEASTVisitor() { this(new CompilerContext()); }
+	TypeCheckEASTVisitor(CompilerContext context) { super(true); this.context = context; } // enables incomplete tree exceptions 
+	TypeCheckEASTVisitor(CompilerContext context, boolean debug) { super(true,debug); this.context = context; } // enables print for debugging
 
 	//checks that a type object is visitable (not incomplete) 
 	private TypeNode ckvisit(TypeNode t) throws TypeException {
@@ -30,6 +33,7 @@ public class TypeCheckEASTVisitor extends BaseEASTVisitor<TypeNode,TypeException
 				visit(dec);
 			} catch (IncomplException e) { 
 			} catch (TypeException e) {
+				context.typeErrors++;
 				System.out.println("Type checking error in a declaration: " + e.text);
 			}
 		return visit(n.exp);
@@ -49,6 +53,7 @@ public class TypeCheckEASTVisitor extends BaseEASTVisitor<TypeNode,TypeException
 				visit(dec);
 			} catch (IncomplException e) { 
 			} catch (TypeException e) {
+				context.typeErrors++;
 				System.out.println("Type checking error in a declaration: " + e.text);
 			}
 		if ( !isSubtype(visit(n.exp),ckvisit(n.retType)) ) 
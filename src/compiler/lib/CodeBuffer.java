@@ -0,0 +1,119 @@
+package compiler.lib;
+
+import java.io.*;
+import java.util.*;
+
+// buffer append-only di istruzioni SVM, usato dalla generazione di codice al posto della
+// concatenazione di stringhe: ogni emit/label costa O(1) ammortizzato, quindi il
+// codice di un programma viene prodotto in tempo lineare nella sua dimensione.
+// Il testo assembly e' solo una delle possibili rappresentazioni (toString/writeTo) ed e'
+// identico a quello prodotto in precedenza concatenando stringhe.
+public class CodeBuffer {
+
+	// istruzione "op arg" (arg null se assente) oppure definizione di etichetta "label:"
+	public static final class Line {
+		public final String label;
+		public final String op;
+		public final String arg;
+		public final boolean blankBefore; // preceduta da una linea vuota nel testo
+
+		Line(String label, String op, String arg, boolean blankBefore) {
+			this.label = label; this.op = op; this.arg = arg; this.blankBefore = blankBefore;
+		}
+
+		public boolean isLabel() {
+			return label != null;
+		}
+	}
+
+	private final List<Line> lines = new ArrayList<>();
+	private boolean blank = false; // la prossima linea va preceduta da una linea vuota
+
+	public void emit(String op) {
+		emit(op, null);
+	}
+
+	public void emit(String op, int arg) {
+		emit(op, Integer.toString(arg));
+	}
+
+	public void emit(String op, String arg) {
+		lines.add(new Line(null, op, arg, blank));
+		blank = false;
+	}
+
+	public void label(String label) {
+		lines.add(new Line(label, null, null, blank));
+		blank = false;
+	}
+
+	public void blank() { // linea vuota di separazione (es. prima del codice di una funzione)
+		blank = true;
+	}
+
+	public void append(CodeBuffer c) {
+		for (Line l : c.lines) {
+			lines.add(blank ? new Line(l.label, l.op, l.arg, true) : l);
+			blank = false;
+		}
+		blank |= c.blank;
+	}
+
+	public int size() {
+		return lines.size();
+	}
+
+	public Line get(int i) {
+		return lines.get(i);
+	}
+
+	public List<Line> lines() {
+		return Collections.unmodifiableList(lines);
+	}
+
+	// costruisce il buffer a partire dal testo assembly (una istruzione o etichetta per riga)
+	public static CodeBuffer parse(String code) {
+		CodeBuffer c = new CodeBuffer();
+		for (String s : code.split("\n")) {
+			s = s.trim();
+			if (s.isEmpty()) c.blank();
+			else if (s.endsWith(":")) c.label(s.substring(0, s.length()-1));
+			else {
+				String[] t = s.split("\\s+", 2); // operandi (due per call) separati da spazi
+				c.emit(t[0], t.length > 1 ? t[1].replaceAll("\\s+", " ") : null);
+			}
+		}
+		return c;
+	}
+
+	public void writeTo(Appendable out) throws IOException {
+		boolean first = true;
+		for (Line l : lines) {
+			if (!first) out.append('\n');
+			first = false;
+			if (l.blankBefore) out.append('\n');
+			if (l.isLabel()) out.append(l.label).append(':');
+			else {
+				out.append(l.op);
+				if (l.arg != null) out.append(' ').append(l.arg);
+			}
+		}
+	}
+
+	// righe del testo assembly (linee vuote comprese), come lette dal file .asm
+	public List<String> textLines() {
+		List<String> text = new ArrayList<>(lines.size() + lines.size() / 8);
+		for (Line l : lines) {
+			if (l.blankBefore) text.add("");
+			text.add(l.isLabel() ? l.label + ":" : l.arg != null ? l.op + " " + l.arg : l.op);
+		}
+		return text;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder(lines.size() * 8);
+		try { writeTo(sb); } catch (IOException e) { throw new UncheckedIOException(e); }
+		return sb.toString();
+	}
+}
@@ -0,0 +1,21 @@
+package compiler.lib;
+
+// stato di una singola compilazione (prima in campi statici di FOOLlib): contatori delle etichette
+// generate e degli errori di tipo. Ogni compilazione ha il proprio, passato a TypeCheckEASTVisitor e
+// a CodeGenerationASTVisitor, cosi' compilazioni diverse (anche in parallelo) non si influenzano
+public class CompilerContext {
+
+	public int typeErrors = 0;
+
+	private int labCount = 0;
+
+	public String freshLabel() {
+		return "label"+(labCount++);
+	}
+
+	private int funlabCount = 0;
+
+	public String freshFunLabel() {
+		return "function"+(funlabCount++);
+	}
+}
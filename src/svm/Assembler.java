@@ -0,0 +1,452 @@
+package svm;
+
+import java.util.*;
+
+/**
+ * Single-pass assembler for SVM code, producing the same code[] as the parser generated from
+ * SVM.g4 and the same sourceMap[] as the one of visualsvm/SVM.g4 without ANTLR. The only
+ * difference is in sourceMap[]: the entry of a label operand (the address after push, b, beq
+ * or bleq) now maps to the line of its instruction, as the other operands do, where the grammar
+ * leaves it 0 (the first line). The visual VM only reads the entries of instruction starts.
+ * compiler.AssemblerCheck compares the three on the samples.
+ *
+ * Code can be fed either as text, through {@link #assemble(CharSequence)} which tokenizes the
+ * assembly by hand following the lexer rules of SVM.g4, or already split into instructions and
+ * labels (e.g. by the compiler) through {@link #instruction} and {@link #label}.
+ *
+ * Labels are numbered as they are met and kept in primitive int arrays: definitions in def[]
+ * (indexed by label number) and pending references in refAddr[]/refLabel[], resolved once by
+ * {@link #code()}. Label names are hashed directly from the input characters, so no String
+ * is created for labels already seen.
+ *
+ * Opcodes are the token ids of the SVM grammar (looked up by their literal, e.g. "push"),
+ * so the result can be run by both {@link ExecuteVM} and visualsvm.ExecuteVM.
+ * Errors are printed as the ANTLR lexer and parser do and counted in {@link #lexicalErrors}
+ * ("Invalid char: ...") and {@link #syntaxErrors} ("line L:C ..."), undefined labels included.
+ */
+public class Assembler {
+
+    private static final Map<String,Integer> OPCODES = new HashMap<>();
+    static {
+        for (int t = 1; t <= SVMParser.VOCABULARY.getMaxTokenType(); t++) {
+            String literal = SVMParser.VOCABULARY.getLiteralName(t);
+            if (literal != null && literal.matches("'[a-z]+'"))
+                OPCODES.put(literal.substring(1, literal.length() - 1), t);
+        }
+    }
+    private static final int MAX_OPCODE_LENGTH = 5;
+    private static final String[][] BY_INITIAL = new String[26][]; // instruction names by initial letter
+    private static final int[][] OPCODES_BY_INITIAL = new int[26][]; // and their opcodes
+    static {
+        for (char c = 'a'; c <= 'z'; c++) {
+            List<String> l = new ArrayList<>();
+            for (String name : OPCODES.keySet()) if (name.charAt(0) == c) l.add(name);
+            BY_INITIAL[c - 'a'] = l.toArray(new String[0]);
+            OPCODES_BY_INITIAL[c - 'a'] = l.stream().mapToInt(OPCODES::get).toArray();
+        }
+    }
+
+    public int lexicalErrors = 0;
+    public int syntaxErrors = 0;
+
+    private int[] code = new int[ExecuteVM.CODESIZE];
+    private int[] sourceMap = new int[ExecuteVM.CODESIZE];
+    private int i = 0;
+
+    // label names: open addressing table from hash to label number
+    private String[] names = new String[64];
+    private int[] def = new int[64];          // address of each label, -1 if not (yet) defined
+    private int labels = 0;
+    private int[] table = new int[128];       // label number + 1, 0 if empty
+    // pending references: code[refAddr[k]] is the address of label refLabel[k]
+    private int[] refAddr = new int[256];
+    private int[] refLabel = new int[256];
+    private int[] refLine = new int[256];
+    private int refs = 0;
+    private boolean resolved = false;
+
+    // operands can be labels for push and branches, integers for push, ret, ldisp, sdisp, call, lv,
+    // dcall, dlv and tjs (two of them)
+    private static boolean takesLabel(int opcode) {
+        return opcode == SVMParser.PUSH || opcode == SVMParser.BRANCH
+                || opcode == SVMParser.BRANCHEQ || opcode == SVMParser.BRANCHLESSEQ;
+    }
+
+    private static boolean takesInteger(int opcode) {
+        return opcode == SVMParser.PUSH || opcode == SVMParser.RET || opcode == SVMParser.CALL
+                || opcode == SVMParser.LOADVAR || opcode == SVMParser.LOADDISP || opcode == SVMParser.STOREDISP
+                || opcode == SVMParser.DISPCALL || opcode == SVMParser.DISPLOADVAR || opcode == SVMParser.TAILJS;
+    }
+
+    public int errors() {
+        return lexicalErrors + syntaxErrors;
+    }
+
+    /* ---------------- instructions already split ---------------- */
+
+    // "op arg" (arg null if absent, operands separated by a space), line is the 0-based line of
+    // the instruction in the assembly text; operands are scanned in place as the text ones
+    public void instruction(String op, String arg, int line) {
+        int opcode = opcode(op, 0, op.length());
+        if (opcode == LABEL) {
+            syntaxError(line, 0, "invalid instruction '" + op + "'");
+            return;
+        }
+        int operands = 0;
+        if (arg != null) {
+            operands = 1;
+            for (int k = 0; k < arg.length(); k++) if (arg.charAt(k) == ' ') operands++;
+        }
+        if (operands != ExecuteVM.operands(opcode)) {
+            syntaxError(line, 0, "wrong number of operands for '" + op + "'");
+            return;
+        }
+        for (int from = 0, to; operands > 0 && from <= arg.length(); from = to + 1) {
+            to = operandEnd(arg, from);
+            if (isInteger(arg, from, to) ? !takesInteger(opcode) : !isLabel(arg, from, to) || !takesLabel(opcode)) {
+                syntaxError(line, 0, "invalid operand '" + arg.substring(from, to) + "' for '" + op + "'");
+                return;
+            }
+        }
+        emit(opcode, line);
+        for (int from = 0, to; operands > 0 && from <= arg.length(); from = to + 1) {
+            to = operandEnd(arg, from);
+            if (isInteger(arg, from, to)) emit(integer(arg, from, to, line, 0), line);
+            else reference(labelId(arg, from, to), line);
+        }
+    }
+
+    public void label(String label, int line) {
+        define(labelId(label, 0, label.length()));
+    }
+
+    private static int operandEnd(String arg, int from) {
+        int to = arg.indexOf(' ', from);
+        return to < 0 ? arg.length() : to;
+    }
+
+    // s[from,to) matches INTEGER of SVM.g4: 0|-?[1-9][0-9]*
+    private static boolean isInteger(CharSequence s, int from, int to) {
+        if (to - from == 1 && s.charAt(from) == '0') return true;
+        int k = from < to && s.charAt(from) == '-' ? from + 1 : from;
+        if (k == to || s.charAt(k) < '1' || s.charAt(k) > '9') return false;
+        for (k++; k < to; k++) if (!isDigit(s.charAt(k))) return false;
+        return true;
+    }
+
+    // s[from,to) matches LABEL of SVM.g4: [a-zA-Z][a-zA-Z0-9]*
+    private static boolean isLabel(CharSequence s, int from, int to) {
+        if (from == to || !isLetter(s.charAt(from))) return false;
+        for (int k = from + 1; k < to; k++) if (!isLetter(s.charAt(k)) && !isDigit(s.charAt(k))) return false;
+        return true;
+    }
+
+    /* ---------------- text ---------------- */
+
+    // token kinds of the tokenizer (besides opcodes, which are SVMParser token ids)
+    private static final int EOF = -1, LABEL = -2, INTEGER = -3, COL = -4;
+
+    private CharSequence text;
+    private int pos, line, lineStart;    // scanner position (line is 0-based)
+    private int tok, tokStart, tokEnd, tokLine, tokCol;
+    private boolean recovering;          // an error has been reported and no instruction parsed since then
+
+    private static final String EXPECTING; // tokens that can start an instruction, as listed by ANTLR
+    static {
+        StringJoiner j = new StringJoiner(", ", "{<EOF>, ", ", LABEL}");
+        for (int t = 1; t <= SVMParser.VOCABULARY.getMaxTokenType(); t++)
+            if (t != SVMParser.COL && OPCODES.containsValue(t)) j.add(SVMParser.VOCABULARY.getLiteralName(t));
+        EXPECTING = j.toString();
+    }
+
+    public static Assembler assemble(CharSequence text) {
+        Assembler a = new Assembler();
+        a.parse(text);
+        a.code();
+        return a;
+    }
+
+    private void parse(CharSequence text) {
+        this.text = text;
+        pos = 0; line = 0; lineStart = 0;
+        next();
+        while (tok != EOF) {
+            int t = tok, l = tokLine, start = tokStart;
+            if (t == LABEL) {
+                int id = labelId(text, tokStart, tokEnd);
+                next();
+                if (tok == COL) {
+                    define(id);
+                    next();
+                    recovering = false;
+                } else recoverableError("missing ':' at " + tokenText());
+            } else if (t > 0) {
+                next();
+                if (ExecuteVM.operands(t) == 0) {
+                    emit(t, l);
+                    recovering = false;
+                } else if (tok == LABEL && takesLabel(t)) {
+                    emit(t, l);
+                    reference(labelId(text, tokStart, tokEnd), l);
+                    next();
+                    recovering = false;
+                } else if (tok == INTEGER && takesInteger(t) && ExecuteVM.operands(t) == 1) {
+                    emit(t, l);
+                    emit(integer(), l);
+                    next();
+                    recovering = false;
+                } else if (tok == INTEGER && takesInteger(t)) { // two integers
+                    int depth = integer();
+                    next();
+                    if (tok == INTEGER) {
+                        emit(t, l);
+                        emit(depth, l);
+                        emit(integer(), l);
+                        next();
+                        recovering = false;
+                    } else {
+                        recoverableError("mismatched input " + tokenText() + " expecting INTEGER");
+                        if (tok == COL) next();
+                    }
+                } else { // as ANTLR, the whole instruction is dropped
+                    if (t == SVMParser.PUSH)
+                        recoverableError("no viable alternative at input '" + escape(text.subSequence(start, tokEnd)) + "'");
+                    else recoverableError("mismatched input " + tokenText() + " expecting " + (takesLabel(t) ? "LABEL" : "INTEGER"));
+                    if (tok == INTEGER || tok == COL) next();
+                }
+            } else {
+                recoverableError("extraneous input " + tokenText() + " expecting " + EXPECTING);
+                next();
+            }
+        }
+        this.text = null;
+    }
+
+    // syntax error at the current token, not reported while recovering from a previous one (as ANTLR does)
+    private void recoverableError(String message) {
+        if (!recovering) syntaxError(tokLine, tokCol, message);
+        recovering = true;
+    }
+
+    private static String escape(CharSequence s) {
+        return s.toString().replace("\n", "\\n").replace("\r", "\\r").replace("\t", "\\t");
+    }
+
+    private String tokenText() {
+        return tok == EOF ? "'<EOF>'" : "'" + text.subSequence(tokStart, tokEnd) + "'";
+    }
+
+    private int integer() {
+        return integer(text, tokStart, tokEnd, tokLine, tokCol);
+    }
+
+    // value of the INTEGER s[from,to) at line:col
+    private int integer(CharSequence s, int from, int to, int line, int col) {
+        long v = 0;
+        boolean negative = s.charAt(from) == '-';
+        for (int k = negative ? from + 1 : from; k < to && v <= Integer.MAX_VALUE + 1L; k++)
+            v = v * 10 + s.charAt(k) - '0';
+        if (v > (negative ? Integer.MAX_VALUE + 1L : Integer.MAX_VALUE)) { // Integer.parseInt would fail
+            syntaxError(line, col, "integer out of range '" + s.subSequence(from, to) + "'");
+            return 0;
+        }
+        return (int) (negative ? -v : v);
+    }
+
+    // opcode of the word s[from,to), LABEL if it is not an instruction name
+    private static int opcode(CharSequence s, int from, int to) {
+        if (from == to) return LABEL;
+        char c = s.charAt(from);
+        if (to - from <= MAX_OPCODE_LENGTH && c >= 'a' && c <= 'z') {
+            String[] names = BY_INITIAL[c - 'a'];
+            for (int k = 0; k < names.length; k++)
+                if (sameName(names[k], s, from, to)) return OPCODES_BY_INITIAL[c - 'a'][k];
+        }
+        return LABEL;
+    }
+
+    private static boolean isLetter(char c) {
+        return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z';
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    // reads the next token skipping white space and comments; unknown characters are reported and skipped
+    private void next() {
+        int n = text.length();
+        while (pos < n) {
+            char c = text.charAt(pos);
+            if (c == '\n') {
+                pos++;
+                line++;
+                lineStart = pos;
+                continue;
+            }
+            if (c == ' ' || c == '\t' || c == '\r') {
+                pos++;
+                continue;
+            }
+            if (c == '/' && pos + 1 < n && text.charAt(pos + 1) == '*' && skipComment()) continue;
+            tokStart = pos;
+            tokLine = line;
+            tokCol = pos - lineStart;
+            if (isLetter(c)) {
+                do pos++; while (pos < n && (isLetter(text.charAt(pos)) || isDigit(text.charAt(pos))));
+                tokEnd = pos;
+                tok = opcode(text, tokStart, tokEnd);
+                return;
+            }
+            if (isDigit(c) || c == '-' && pos + 1 < n && text.charAt(pos + 1) >= '1' && text.charAt(pos + 1) <= '9') {
+                pos++;
+                if (c != '0') while (pos < n && isDigit(text.charAt(pos))) pos++;
+                tokEnd = pos;
+                tok = INTEGER;
+                return;
+            }
+            if (c == ':') {
+                tokEnd = ++pos;
+                tok = COL;
+                return;
+            }
+            System.out.println("Invalid char: " + c + " at line " + (line + 1));
+            lexicalErrors++;
+            pos++;
+        }
+        tokStart = tokEnd = pos;
+        tokLine = line;
+        tokCol = pos - lineStart;
+        tok = EOF;
+    }
+
+    // skips a comment starting at pos, false if it is not terminated (then '/' is an invalid char)
+    private boolean skipComment() {
+        int n = text.length(), l = line, ls = lineStart;
+        for (int k = pos + 2; k + 1 < n; k++) {
+            char c = text.charAt(k);
+            if (c == '*' && text.charAt(k + 1) == '/') {
+                pos = k + 2;
+                line = l;
+                lineStart = ls;
+                return true;
+            }
+            if (c == '\n') {
+                l++;
+                ls = k + 1;
+            }
+        }
+        return false;
+    }
+
+    /* ---------------- code and labels ---------------- */
+
+    private void emit(int word, int line) {
+        if (i == code.length) {
+            code = Arrays.copyOf(code, code.length * 2);
+            sourceMap = Arrays.copyOf(sourceMap, sourceMap.length * 2);
+        }
+        code[i] = word;
+        sourceMap[i] = line;
+        i++;
+    }
+
+    private void reference(int label, int line) {
+        if (refs == refAddr.length) {
+            refAddr = Arrays.copyOf(refAddr, refs * 2);
+            refLabel = Arrays.copyOf(refLabel, refs * 2);
+            refLine = Arrays.copyOf(refLine, refs * 2);
+        }
+        refAddr[refs] = i;
+        refLabel[refs] = label;
+        refLine[refs] = line;
+        refs++;
+        emit(0, line);
+    }
+
+    private void define(int label) {
+        def[label] = i; // as in SVM.g4, a redefinition overrides the previous address
+    }
+
+    // number of the label whose name is s[from,to), added if new
+    private int labelId(CharSequence s, int from, int to) {
+        int h = 0;
+        for (int k = from; k < to; k++) h = 31 * h + s.charAt(k);
+        int mask = table.length - 1;
+        for (int slot = mix(h) & mask; ; slot = (slot + 1) & mask) {
+            int id = table[slot] - 1;
+            if (id < 0) break;
+            if (sameName(names[id], s, from, to)) return id;
+        }
+        if (labels == names.length) {
+            names = Arrays.copyOf(names, labels * 2);
+            def = Arrays.copyOf(def, labels * 2);
+        }
+        names[labels] = s.subSequence(from, to).toString();
+        def[labels] = -1;
+        labels++;
+        if (labels * 2 > table.length) rehash();
+        else insert(labels - 1, h);
+        return labels - 1;
+    }
+
+    private static boolean sameName(String name, CharSequence s, int from, int to) {
+        if (name.length() != to - from) return false;
+        for (int k = 0; k < name.length(); k++)
+            if (name.charAt(k) != s.charAt(from + k)) return false;
+        return true;
+    }
+
+    // spreads String.hashCode(), which is consecutive for generated names like label0, label1, ...
+    private static int mix(int h) {
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private void insert(int id, int hash) {
+        int mask = table.length - 1;
+        int slot = mix(hash) & mask;
+        while (table[slot] != 0) slot = (slot + 1) & mask;
+        table[slot] = id + 1;
+    }
+
+    private void rehash() {
+        table = new int[table.length * 2];
+        for (int id = 0; id < labels; id++) insert(id, names[id].hashCode()); // same hash as labelId
+    }
+
+    // assembled code (at least ExecuteVM.CODESIZE words, as produced by SVMParser)
+    public int[] code() {
+        if (!resolved) {
+            resolved = true;
+            for (int k = 0; k < refs; k++) {
+                int address = def[refLabel[k]];
+                if (address < 0) syntaxError(refLine[k], 0, "undefined label '" + names[refLabel[k]] + "'");
+                else code[refAddr[k]] = address;
+            }
+        }
+        return code;
+    }
+
+    private void syntaxError(int line, int col, String message) {
+        System.err.println("line " + (line + 1) + ":" + col + " " + message);
+        syntaxErrors++;
+    }
+
+    // line of the assembly text (0-based) of each word of code(), label operands included
+    public int[] sourceMap() {
+        return sourceMap;
+    }
+
+    // address of each label definition
+    public Map<String,Integer> labels() {
+        Map<String,Integer> m = new LinkedHashMap<>();
+        for (int id = 0; id < labels; id++) if (def[id] >= 0) m.put(names[id], def[id]);
+        return m;
+    }
+
+    // number of words actually assembled (code() is padded with zeros)
+    public int size() {
+        return i;
+    }
+}
@@ -0,0 +1,619 @@
+package svm;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Translates assembled SVM code into a JVM class extending {@link CompiledCode}, so that
+ * HotSpot compiles FOOL programs to machine code instead of interpreting them.
+ *
+ * The code is split into regions of whole functions (the addresses pushed by the code), each
+ * translated into a method of about REGION_BYTES of bytecode: HotSpot does not compile methods
+ * larger than 8000 bytes, so a single method would stay interpreted with about 20 functions.
+ * run() calls the method of the region of $ip until HALT; a region method loads the registers
+ * from the fields of CompiledCode, runs until the code leaves the region and stores them back,
+ * returning the next $ip.
+ *
+ * Inside a region every SVM instruction becomes straight-line bytecode over JVM locals holding
+ * $sp, $fp, $hp, $ra, $tm, the memory array and the display (of the display calling convention,
+ * sized on the levels the code uses), with the same effects on memory as {@link ExecuteVM#cpu()}.
+ * Branches become direct jumps; JS, CALL, DISPCALL, TAILJS and RET store the target address in $ip and go
+ * through a lookupswitch over the addresses of the region the program can jump to (pushed
+ * constants, return addresses and the targets of branches from other regions).
+ *
+ * Classes are written in version 49 format, which the JVM verifies by type inference and
+ * therefore needs no StackMapTable. Programs with a region whose translation exceeds the 64KB
+ * method limit are not compiled: compile() returns null and the caller should use an interpreter.
+ */
+public class BytecodeCompiler {
+
+    private static final int L_THIS = 0, L_IP = 1, L_SP = 2, L_FP = 3, L_HP = 4, L_RA = 5, L_TM = 6, L_MEM = 7,
+            L_TMP = 8, L_DISP = 9;
+
+    private static final String BASE = "svm/CompiledCode";
+
+    private static int classCount = 0;
+
+    private final int[] code;
+    private final int length;                                // number of meaningful code words
+    private final Map<String, Integer> constants = new HashMap<>();
+    private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+    private final DataOutputStream poolOut = new DataOutputStream(pool);
+    private int poolCount = 1;
+
+    private static final int REGION_BYTES = 4000;            // bytecode of a method, see analyze()
+
+    private String className;
+    private boolean[] start;                                 // instruction starts
+    private final TreeSet<Integer> entries = new TreeSet<>(); // addresses reached through a dispatch
+    private int[] regionStarts;                              // first address of each region
+    private int[] regionOf;                                  // region of each code address
+
+    private Bytes method = new Bytes();
+    private int regionStart, regionEnd;                      // addresses translated by the method
+    private int dispatch;                                    // bytecode position of its lookupswitch
+    private int[] position;                                  // bytecode position of each code address (-1 if none)
+    private final List<int[]> fixups = new ArrayList<>();    // {offset field, jump instruction start, target address}
+    private final List<Integer> exits = new ArrayList<>();   // goto_w to the epilogue
+
+    private BytecodeCompiler(int[] code) {
+        this.code = code;
+        int n = code.length;
+        while (n > 0 && code[n-1] == 0) n--; // trailing unused words
+        this.length = n;
+    }
+
+    public static CompiledCode compile(int[] code) {
+        try {
+            BytecodeCompiler c = new BytecodeCompiler(code);
+            String name;
+            synchronized (BytecodeCompiler.class) { name = "svm/CompiledProgram" + (classCount++); }
+            byte[] bytes = c.classFile(name);
+            if (bytes == null) return null;
+            Class<?> cls = new Loader(CompiledCode.class.getClassLoader()).define(name.replace('/', '.'), bytes);
+            CompiledCode compiled = (CompiledCode) cls.getDeclaredConstructor().newInstance();
+            compiled.regions = c.regionOf;
+            return compiled;
+        } catch (ReflectiveOperationException | IOException e) {
+            throw new IllegalStateException("Could not load compiled SVM code", e);
+        }
+    }
+
+    private static class Loader extends ClassLoader {
+        Loader(ClassLoader parent) { super(parent); }
+        Class<?> define(String name, byte[] b) { return defineClass(name, b, 0, b.length); }
+    }
+
+    // ------------------------------------------------------------------------------------------
+    // code translation
+
+    // instruction starts, the addresses reachable through JS and the start of each region
+    private void analyze() throws IOException {
+        start = new boolean[length + 1];
+        boolean[] function = new boolean[length + 1];
+        entries.add(0);
+        function[0] = true;
+        for (int ip = 0; ip < length; ) {
+            start[ip] = true;
+            int bytecode = code[ip++];
+            if (bytecode == SVMParser.PUSH && ip < length) entries.add(code[ip]);
+            if (bytecode == SVMParser.PUSH && ip < length && code[ip] >= 0 && code[ip] < length) function[code[ip]] = true;
+            ip += ExecuteVM.operands(bytecode);
+            if (bytecode == SVMParser.JS || bytecode == SVMParser.CALL || bytecode == SVMParser.DISPCALL) entries.add(ip);
+        }
+        entries.removeIf(a -> a < 0 || a >= length || !start[a]);
+
+        // bytecode of each instruction (the lookupswitch case included), translating the
+        // program as a single method, and of each function, from its entry to the next one
+        position = new int[length + 1];
+        int[] size = new int[length + 1], functionSize = new int[length + 1];
+        regionStart = 0;
+        regionEnd = length + 1;
+        for (int ip = 0; ip < length; ) {
+            int at = method.size(), next = translate(ip);
+            size[ip] = method.size() - at + (entries.contains(ip) ? 8 : 0);
+            ip = next;
+        }
+        for (int ip = length - 1, bytes = 0; ip >= 0; ip--) {
+            bytes += size[ip];
+            if (function[ip] && start[ip]) {
+                functionSize[ip] = bytes;
+                bytes = 0;
+            }
+        }
+        method = new Bytes();
+        fixups.clear();
+        exits.clear();
+
+        // regions are filled with whole functions up to REGION_BYTES, and split inside a
+        // function only if it is larger than that
+        List<Integer> starts = new ArrayList<>();
+        starts.add(0);
+        for (int ip = 0, bytes = 0; ip < length; ip++) {
+            if (!start[ip]) continue;
+            if (bytes > 0 && (function[ip] && bytes + functionSize[ip] > REGION_BYTES || bytes + size[ip] > REGION_BYTES)) {
+                starts.add(ip);
+                bytes = 0;
+            }
+            bytes += size[ip];
+        }
+        regionStarts = starts.stream().mapToInt(Integer::intValue).toArray();
+        regionOf = new int[length + 1];
+        for (int r = 0; r < regionStarts.length; r++) {
+            int end = r + 1 < regionStarts.length ? regionStarts[r + 1] : length + 1;
+            Arrays.fill(regionOf, regionStarts[r], end, r);
+        }
+
+        // branches to another region and falling into the next one go through its dispatch
+        for (int r = 1; r < regionStarts.length; r++) entries.add(regionStarts[r]);
+        for (int ip = 0; ip < length; ) {
+            int bytecode = code[ip];
+            int target = ip + 1 < length ? code[ip + 1] : -1;
+            if ((bytecode == SVMParser.BRANCH || bytecode == SVMParser.BRANCHEQ || bytecode == SVMParser.BRANCHLESSEQ)
+                    && target >= 0 && target <= length && regionOf[target] != regionOf[ip])
+                entries.add(target);
+            ip += 1 + ExecuteVM.operands(bytecode);
+        }
+    }
+
+    // method translating the code addresses [from, to) (to included if it is length, where the
+    // code is left by falling off its end): it loads the registers from the fields, jumps to $ip
+    // and stores them back when the code leaves the region, returning the next $ip (-1 on HALT)
+    private byte[] regionMethod(int from, int to) throws IOException {
+        method = new Bytes();
+        fixups.clear();
+        exits.clear();
+        regionStart = from;
+        regionEnd = to == length ? length + 1 : to;
+        Arrays.fill(position, regionStart, regionEnd, -1);
+
+        // prologue: load registers into locals
+        loadField("memory", "[I"); method.u1(0x3a).u1(L_MEM);   // astore
+        loadField("sp", "I"); istore(L_SP);
+        loadField("fp", "I"); istore(L_FP);
+        loadField("hp", "I"); istore(L_HP);
+        loadField("ra", "I"); istore(L_RA);
+        loadField("tm", "I"); istore(L_TM);
+        loadField("display", "[I"); method.u1(0x3a).u1(L_DISP);
+
+        // dispatch on $ip at the start and for JS, CALL, DISPCALL, TAILJS and RET
+        dispatch = method.size();
+        iload(L_IP);
+        int switchStart = method.size();
+        method.u1(0xab);                                       // lookupswitch
+        while (method.size() % 4 != 0) method.u1(0);
+        int defaultOffset = method.size();
+        SortedSet<Integer> targets = entries.subSet(regionStart, regionEnd);
+        method.u4(0).u4(targets.size());
+        for (int a : targets) {
+            method.u4(a);
+            fixups.add(new int[] {method.size(), switchStart, a});
+            method.u4(0);
+        }
+        // $ip outside the region: leave it if $ip is an address of the program
+        method.setU4(defaultOffset, method.size() - switchStart);
+        iload(L_IP); iconst(regionStart); int below = jump(0xa1);      // if_icmplt
+        iload(L_IP); iconst(regionEnd); int inside = jump(0xa1);
+        land(below);
+        iload(L_IP); int negative = jump(0x9b);                       // iflt
+        iload(L_IP); iconst(length); int beyond = jump(0xa2);         // if_icmpge
+        gotoExit();
+        land(inside);
+        land(negative);
+        land(beyond);
+        badAddress();
+
+        for (int ip = from; ip < to; ) ip = translate(ip);
+        if (to < length) gotoAddress(to);                      // falling into the next region
+        else {
+            position[length] = method.size();
+            iconst(length); istore(L_IP);                      // falling off the code
+            badAddress();
+        }
+
+        // epilogue: store registers back and return $ip
+        int exit = method.size();
+        for (int e : exits) method.setU4(e + 1, exit - e);
+        storeField(L_SP, "sp", "I", false);
+        storeField(L_FP, "fp", "I", false);
+        storeField(L_HP, "hp", "I", false);
+        storeField(L_RA, "ra", "I", false);
+        storeField(L_TM, "tm", "I", false);
+        iload(L_IP);
+        method.u1(0xac);                                       // ireturn
+
+        for (int[] f : fixups) {
+            if (position[f[2]] < 0) throw new IllegalStateException("Jump to invalid code address " + f[2]);
+            method.setU4(f[0], position[f[2]] - f[1]);
+        }
+        return method.size() > 65535 ? null : method.toByteArray();
+    }
+
+    // translates the instruction at ip, returning the address of the next one
+    private int translate(int ip) throws IOException {
+        position[ip] = method.size();
+        int bytecode = code[ip++];
+        int operands = ExecuteVM.operands(bytecode);
+        int arg = operands > 0 && ip < length ? code[ip++] : 0;
+        int arg2 = operands > 1 && ip < length ? code[ip++] : 0;
+        switch (bytecode) {
+            case SVMParser.PUSH:
+                iinc(L_SP, -1); checkStack(); aload(L_MEM); iload(L_SP); iconst(arg); method.u1(0x4f); // iastore
+                break;
+            case SVMParser.POP:
+                iinc(L_SP, 1);
+                break;
+            case SVMParser.ADD:  binary(0x60); break;
+            case SVMParser.SUB:  binary(0x64); break;
+            case SVMParser.MULT: binary(0x68); break;
+            case SVMParser.DIV:  binary(0x6c); break;
+            case SVMParser.STOREW:
+                // memory[memory[sp]] = memory[sp+1]; sp += 2
+                aload(L_MEM); aload(L_MEM); iload(L_SP); method.u1(0x2e);
+                aload(L_MEM); iload(L_SP); iconst(1); method.u1(0x60).u1(0x2e);
+                method.u1(0x4f);
+                iinc(L_SP, 2);
+                break;
+            case SVMParser.LOADW:
+                // memory[sp] = memory[memory[sp]]
+                aload(L_MEM); iload(L_SP); aload(L_MEM); aload(L_MEM); iload(L_SP); method.u1(0x2e).u1(0x2e);
+                method.u1(0x4f);
+                break;
+            case SVMParser.BRANCH:
+                gotoAddress(arg);
+                break;
+            case SVMParser.BRANCHEQ:
+            case SVMParser.BRANCHLESSEQ:
+                // v1 = memory[sp], v2 = memory[sp+1]; sp += 2; jump if v2 == v1 (v2 <= v1)
+                iinc(L_SP, 2);
+                aload(L_MEM); iload(L_SP); iconst(1); method.u1(0x64).u1(0x2e);
+                aload(L_MEM); iload(L_SP); iconst(2); method.u1(0x64).u1(0x2e);
+                int skip = jump(bytecode == SVMParser.BRANCHEQ ? 0xa0 : 0xa3); // if_icmpne / if_icmpgt over the jump
+                gotoAddress(arg);
+                land(skip);
+                break;
+            case SVMParser.JS:
+                aload(L_MEM); iload(L_SP); method.u1(0x2e); istore(L_IP);
+                iinc(L_SP, 1);
+                iconst(ip); istore(L_RA);
+                gotoPosition(dispatch);
+                break;
+            case SVMParser.CALL:
+                // tm = fp followed by arg access links; push tm; ip = memory[tm+arg2]
+                iload(L_FP); istore(L_TM);
+                for (int k = 0; k < arg; k++) { aload(L_MEM); iload(L_TM); method.u1(0x2e); istore(L_TM); }
+                pushRegister(L_TM);
+                aload(L_MEM); iload(L_TM); iconst(arg2); method.u1(0x60).u1(0x2e); istore(L_IP);
+                iconst(ip); istore(L_RA);
+                gotoPosition(dispatch);
+                break;
+            case SVMParser.LOADVAR:
+                // tmp = fp followed by arg access links; push memory[tmp+arg2]
+                iload(L_FP); istore(L_TMP);
+                for (int k = 0; k < arg; k++) { aload(L_MEM); iload(L_TMP); method.u1(0x2e); istore(L_TMP); }
+                aload(L_MEM); iload(L_TMP); iconst(arg2); method.u1(0x60).u1(0x2e); istore(L_TMP);
+                pushRegister(L_TMP);
+                break;
+            case SVMParser.RET:
+                // tm = memory[sp]; ra = memory[fp-1]; sp = fp+arg+1; fp = memory[sp]; memory[sp] = tm; ip = ra
+                aload(L_MEM); iload(L_SP); method.u1(0x2e); istore(L_TM);
+                aload(L_MEM); iload(L_FP); iconst(1); method.u1(0x64).u1(0x2e); istore(L_RA);
+                iload(L_FP); iconst(arg + 1); method.u1(0x60); istore(L_SP);
+                aload(L_MEM); iload(L_SP); method.u1(0x2e); istore(L_FP);
+                aload(L_MEM); iload(L_SP); iload(L_TM); method.u1(0x4f);
+                iload(L_RA); istore(L_IP);
+                gotoPosition(dispatch);
+                break;
+            case SVMParser.TAILJS:
+                // ip = memory[sp]; sp++; ra = memory[fp-1]; tmp = fp+arg2+1-arg;
+                // memory[tmp+k] = memory[sp+k] for k from arg-1 down to 0; sp = tmp
+                aload(L_MEM); iload(L_SP); method.u1(0x2e); istore(L_IP);
+                iinc(L_SP, 1);
+                aload(L_MEM); iload(L_FP); iconst(1); method.u1(0x64).u1(0x2e); istore(L_RA);
+                iload(L_FP); iconst(arg2 + 1 - arg); method.u1(0x60); istore(L_TMP);
+                for (int k = arg - 1; k >= 0; k--) {
+                    aload(L_MEM); iload(L_TMP); iconst(k); method.u1(0x60);
+                    aload(L_MEM); iload(L_SP); iconst(k); method.u1(0x60).u1(0x2e);
+                    method.u1(0x4f);
+                }
+                iload(L_TMP); istore(L_SP);
+                gotoPosition(dispatch);
+                break;
+            case SVMParser.LOADDISP:
+                aload(L_DISP); iconst(arg); method.u1(0x2e); istore(L_TMP);
+                pushRegister(L_TMP);
+                break;
+            case SVMParser.STOREDISP:
+                // display[arg] = memory[sp]; sp++
+                aload(L_DISP); iconst(arg); aload(L_MEM); iload(L_SP); method.u1(0x2e).u1(0x4f);
+                iinc(L_SP, 1);
+                break;
+            case SVMParser.DISPCALL:
+                // push display[arg+1]; ip = memory[display[arg]+arg2]
+                aload(L_DISP); iconst(arg + 1); method.u1(0x2e); istore(L_TMP);
+                pushRegister(L_TMP);
+                aload(L_MEM); aload(L_DISP); iconst(arg); method.u1(0x2e); iconst(arg2); method.u1(0x60).u1(0x2e);
+                istore(L_IP);
+                iconst(ip); istore(L_RA);
+                gotoPosition(dispatch);
+                break;
+            case SVMParser.DISPLOADVAR:
+                // push memory[display[arg]+arg2]
+                aload(L_MEM); aload(L_DISP); iconst(arg); method.u1(0x2e); iconst(arg2); method.u1(0x60).u1(0x2e);
+                istore(L_TMP);
+                pushRegister(L_TMP);
+                break;
+            case SVMParser.LOADRA:  pushRegister(L_RA); break;
+            case SVMParser.STORERA: popRegister(L_RA); break;
+            case SVMParser.LOADTM:  pushRegister(L_TM); break;
+            case SVMParser.STORETM: popRegister(L_TM); break;
+            case SVMParser.LOADFP:  pushRegister(L_FP); break;
+            case SVMParser.STOREFP: popRegister(L_FP); break;
+            case SVMParser.COPYFP:
+                iload(L_SP); istore(L_FP);
+                break;
+            case SVMParser.LOADHP:  pushRegister(L_HP); break;
+            case SVMParser.STOREHP: popRegister(L_HP); checkHeap(); break;
+            case SVMParser.PRINT:
+                aload(L_MEM); iload(L_SP);
+                method.u1(0xb8).u2(methodRef(BASE, "print", "([II)V"));
+                break;
+            case SVMParser.HALT:
+                iconst(-1); istore(L_IP);
+                gotoExit();
+                break;
+        }
+        return ip;
+    }
+
+    // run(): creates the display and calls the method of the region of $ip until HALT
+    private byte[] runMethod() throws IOException {
+        method = new Bytes();
+        aload(L_THIS); iconst(ExecuteVM.displayLevels(code, length)); method.u1(0xbc).u1(10); // newarray int
+        method.u1(0xb5).u2(fieldRef("display", "[I"));         // putfield
+        iconst(0); istore(L_IP);
+        int loop = method.size();
+        iload(L_IP); int halt = jump(0x9b);                    // iflt
+        loadField("regions", "[I"); iload(L_IP); method.u1(0x2e);
+        int switchStart = method.size();
+        method.u1(0xaa);                                       // tableswitch
+        while (method.size() % 4 != 0) method.u1(0);
+        int defaultOffset = method.size();
+        method.u4(0).u4(0).u4(regionStarts.length - 1);
+        int cases = method.size();
+        for (int r = 0; r < regionStarts.length; r++) method.u4(0);
+        for (int r = 0; r < regionStarts.length; r++) {
+            method.setU4(cases + 4 * r, method.size() - switchStart);
+            aload(L_THIS); iload(L_IP);
+            method.u1(0xb6).u2(methodRef(className, "region" + r, "(I)I")); // invokevirtual
+            istore(L_IP);
+            gotoPosition(loop);
+        }
+        method.setU4(defaultOffset, method.size() - switchStart);
+        badAddress();
+        land(halt);
+        method.u1(0xb1);                                       // return
+        return method.size() > 65535 ? null : method.toByteArray();
+    }
+
+    // memory[sp+1] = memory[sp+1] op memory[sp]; sp++
+    private void binary(int opcode) {
+        iinc(L_SP, 1);
+        aload(L_MEM); iload(L_SP);
+        aload(L_MEM); iload(L_SP); method.u1(0x2e);
+        aload(L_MEM); iload(L_SP); iconst(1); method.u1(0x64).u1(0x2e);
+        method.u1(opcode);
+        method.u1(0x4f);
+    }
+
+    private void pushRegister(int local) {
+        iinc(L_SP, -1); checkStack(); aload(L_MEM); iload(L_SP); iload(local); method.u1(0x4f);
+    }
+
+    // throws stackOverflow(sp, hp) unless sp > hp
+    private void checkStack() {
+        iload(L_SP); iload(L_HP); method.u1(0xa3).u2(11);      // if_icmpgt over the throw
+        iload(L_SP); iload(L_HP);
+        method.u1(0xb8).u2(methodRef(BASE, "stackOverflow", "(II)Ljava/lang/RuntimeException;"));
+        method.u1(0xbf);                                       // athrow
+    }
+
+    // throws outOfMemory(hp, sp) unless sp > hp
+    private void checkHeap() {
+        iload(L_SP); iload(L_HP); method.u1(0xa3).u2(11);
+        iload(L_HP); iload(L_SP);
+        method.u1(0xb8).u2(methodRef(BASE, "outOfMemory", "(II)Ljava/lang/RuntimeException;"));
+        method.u1(0xbf);
+    }
+
+    private void popRegister(int local) {
+        aload(L_MEM); iload(L_SP); method.u1(0x2e); istore(local); iinc(L_SP, 1);
+    }
+
+    private void badAddress() {
+        iload(L_IP);
+        method.u1(0xb8).u2(methodRef(BASE, "badAddress", "(I)Ljava/lang/RuntimeException;"));
+        method.u1(0xbf);                                       // athrow
+    }
+
+    // jumps to address, leaving the region if it is not in it
+    private void gotoAddress(int address) {
+        if (address < 0 || address > length) throw new IllegalStateException("Jump to invalid code address " + address);
+        if (address < regionStart || address >= regionEnd) {
+            iconst(address); istore(L_IP);
+            gotoExit();
+            return;
+        }
+        int at = method.size();
+        method.u1(0xc8);                                       // goto_w
+        fixups.add(new int[] {method.size(), at, address});
+        method.u4(0);
+    }
+
+    private void gotoExit() {
+        exits.add(method.size());
+        method.u1(0xc8).u4(0);                                 // goto_w exit
+    }
+
+    // conditional jump forward, to the position given later by land()
+    private int jump(int opcode) {
+        int at = method.size();
+        method.u1(opcode).u2(0);
+        return at;
+    }
+
+    private void land(int jump) {
+        method.setU2(jump + 1, method.size() - jump);
+    }
+
+    private void gotoPosition(int target) {
+        int at = method.size();
+        method.u1(0xc8).u4(target - at);
+    }
+
+    private void loadField(String name, String desc) throws IOException {
+        aload(L_THIS);
+        method.u1(0xb4).u2(fieldRef(name, desc));              // getfield
+    }
+
+    private void storeField(int local, String name, String desc, boolean reference) throws IOException {
+        aload(L_THIS);
+        if (reference) aload(local); else iload(local);
+        method.u1(0xb5).u2(fieldRef(name, desc));              // putfield
+    }
+
+    private void iload(int local)  { method.u1(0x15).u1(local); }
+    private void istore(int local) { method.u1(0x36).u1(local); }
+    private void aload(int local)  { method.u1(0x19).u1(local); }
+    private void iinc(int local, int delta) { method.u1(0x84).u1(local).u1(delta); }
+
+    private void iconst(int v) {
+        if (v >= -1 && v <= 5) method.u1(0x03 + v);            // iconst_<v>
+        else if (v >= Byte.MIN_VALUE && v <= Byte.MAX_VALUE) method.u1(0x10).u1(v);
+        else if (v >= Short.MIN_VALUE && v <= Short.MAX_VALUE) method.u1(0x11).u2(v);
+        else {
+            try { method.u1(0x13).u2(integer(v)); }           // ldc_w
+            catch (IOException e) { throw new UncheckedIOException(e); }
+        }
+    }
+
+    // ------------------------------------------------------------------------------------------
+    // class file
+
+    private byte[] classFile(String name) throws IOException {
+        int thisClass = classRef(name);
+        int superClass = classRef(BASE);
+        int init = methodRef(BASE, "<init>", "()V");
+        className = name;
+        analyze();
+        byte[][] regions = new byte[regionStarts.length][];
+        for (int r = 0; r < regions.length; r++) {
+            regions[r] = regionMethod(regionStarts[r], r + 1 < regions.length ? regionStarts[r + 1] : length);
+            if (regions[r] == null) return null;
+        }
+        byte[] run = runMethod();
+        if (run == null) return null;
+        int codeAttr = utf8("Code");
+        int initName = utf8("<init>"), initDesc = utf8("()V");
+        int runName = utf8("run"), runDesc = utf8("()V");
+        int regionDesc = utf8("(I)I");
+        int[] regionNames = new int[regions.length];
+        for (int r = 0; r < regions.length; r++) regionNames[r] = utf8("region" + r);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0xCAFEBABE);
+        out.writeShort(0);
+        out.writeShort(49);
+        out.writeShort(poolCount);
+        pool.writeTo(out);
+        out.writeShort(0x0001 | 0x0010 | 0x0020);                // public final super
+        out.writeShort(thisClass);
+        out.writeShort(superClass);
+        out.writeShort(0);                                       // interfaces
+        out.writeShort(0);                                       // fields
+        out.writeShort(2 + regions.length);                      // methods
+
+        byte[] initCode = {0x2a, (byte) 0xb7, (byte) (init >> 8), (byte) init, (byte) 0xb1}; // aload_0 invokespecial return
+        writeMethod(out, 0x0001, initName, initDesc, codeAttr, 1, 1, initCode);
+        writeMethod(out, 0x0004, runName, runDesc, codeAttr, 3, L_IP + 1, run);
+        for (int r = 0; r < regions.length; r++)                 // final
+            writeMethod(out, 0x0010, regionNames[r], regionDesc, codeAttr, 6, L_DISP + 1, regions[r]);
+        out.writeShort(0);                                       // attributes
+        return bytes.toByteArray();
+    }
+
+    private static void writeMethod(DataOutputStream out, int access, int name, int desc, int codeAttr,
+                                    int maxStack, int maxLocals, byte[] code) throws IOException {
+        out.writeShort(access);
+        out.writeShort(name);
+        out.writeShort(desc);
+        out.writeShort(1);
+        out.writeShort(codeAttr);
+        out.writeInt(12 + code.length);
+        out.writeShort(maxStack);
+        out.writeShort(maxLocals);
+        out.writeInt(code.length);
+        out.write(code);
+        out.writeShort(0);                                       // exception table
+        out.writeShort(0);                                       // attributes
+    }
+
+    private int constant(String key, int tag, int a, int b, String s, boolean isInt) throws IOException {
+        Integer index = constants.get(key);
+        if (index != null) return index;
+        poolOut.writeByte(tag);
+        if (s != null) poolOut.writeUTF(s);
+        else if (isInt) poolOut.writeInt(a);
+        else if (tag == 7) poolOut.writeShort(a);
+        else { poolOut.writeShort(a); poolOut.writeShort(b); }
+        constants.put(key, poolCount);
+        return poolCount++;
+    }
+
+    private int utf8(String s) throws IOException { return constant("U" + s, 1, 0, 0, s, false); }
+    private int integer(int v) throws IOException { return constant("I" + v, 3, v, 0, null, true); }
+    private int classRef(String name) throws IOException { return constant("C" + name, 7, utf8(name), 0, null, false); }
+
+    private int nameAndType(String name, String desc) throws IOException {
+        return constant("N" + name + ":" + desc, 12, utf8(name), utf8(desc), null, false);
+    }
+
+    private int fieldRef(String name, String desc) throws IOException {
+        return constant("F" + name + ":" + desc, 9, classRef(BASE), nameAndType(name, desc), null, false);
+    }
+
+    private int methodRef(String owner, String name, String desc) {
+        try { return constant("M" + owner + "." + name + desc, 10, classRef(owner), nameAndType(name, desc), null, false); }
+        catch (IOException e) { throw new UncheckedIOException(e); }
+    }
+
+    // growable byte array with in-place patching
+    private static class Bytes {
+        private byte[] data = new byte[1024];
+        private int size;
+
+        int size() { return size; }
+
+        Bytes u1(int v) {
+            if (size == data.length) data = Arrays.copyOf(data, size * 2);
+            data[size++] = (byte) v;
+            return this;
+        }
+
+        Bytes u2(int v) { return u1(v >> 8).u1(v); }
+        Bytes u4(int v) { return u2(v >> 16).u2(v); }
+
+        void setU2(int at, int v) {
+            data[at] = (byte) (v >> 8); data[at+1] = (byte) v;
+        }
+
+        void setU4(int at, int v) {
+            data[at] = (byte) (v >> 24); data[at+1] = (byte) (v >> 16);
+            data[at+2] = (byte) (v >> 8); data[at+3] = (byte) v;
+        }
+
+        byte[] toByteArray() { return Arrays.copyOf(data, size); }
+    }
+
+}
@@ -0,0 +1,61 @@
+package svm;
+
+/**
+ * Base class of the JVM classes generated by {@link BytecodeCompiler}.
+ *
+ * The generated methods keep the registers in JVM local variables while running and store
+ * them back in these fields when the code leaves their region or HALT is reached, so that the
+ * final VM state is observable exactly as in {@link ExecuteVM}.
+ */
+public abstract class CompiledCode {
+
+    protected int[] memory = new int[ExecuteVM.MEMSIZE];
+
+    protected int sp = ExecuteVM.MEMSIZE;
+    protected int fp = ExecuteVM.MEMSIZE;
+    protected int hp = 0;
+    protected int ra;
+    protected int tm;
+    protected int[] display;
+
+    protected int[] regions; // method of each code address, set by BytecodeCompiler
+
+    protected abstract void run();
+
+    // replaces the memory with memSize words (default ExecuteVM.MEMSIZE) and empties the heap, before cpu()
+    public CompiledCode withMemory(int memSize) {
+        memory = new int[memSize];
+        sp = fp = memSize;
+        hp = 0;
+        return this;
+    }
+
+    public void cpu() {
+        try {
+            run();
+        } catch (ArrayIndexOutOfBoundsException e) { // lw/sw outside memory
+            throw new SVMException("Invalid memory address (" + e.getMessage() + ")");
+        }
+    }
+
+    // called by the generated code for PRINT
+    protected static void print(int[] memory, int sp) {
+        System.out.println((sp < memory.length) ? memory[sp] : "Empty stack!");
+    }
+
+    // called by the generated code when a push makes $sp reach $hp
+    protected static RuntimeException stackOverflow(int sp, int hp) {
+        return SVMException.stackOverflow(sp, hp);
+    }
+
+    // called by the generated code when SHP makes $hp reach $sp
+    protected static RuntimeException outOfMemory(int hp, int sp) {
+        return SVMException.outOfMemory(hp, sp);
+    }
+
+    // called by the generated code when JS pops an address that is not an instruction of the program
+    protected static RuntimeException badAddress(int address) {
+        return new SVMException("Invalid code address " + address);
+    }
+
+}
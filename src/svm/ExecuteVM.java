@@ -5,21 +5,84 @@ public class ExecuteVM {
     public static final int MEMSIZE = 10000;
     
     private int[] code;
-    private int[] memory = new int[MEMSIZE];
+    private final int memSize;
+    private int[] memory;    // words [base, memSize) of the address space, see read and write
+    private int base;
     
     private int ip = 0;
-    private int sp = MEMSIZE;
+    private int sp;
     
     private int hp = 0;       
-    private int fp = MEMSIZE; 
+    private int fp; 
     private int ra;           
     private int tm;
     
+    private final int[] display; // frame of each nesting level, with the display calling convention
+    
     public ExecuteVM(int[] code) {
+      this(code, MEMSIZE);
+    }
+    
+    public ExecuteVM(int[] code, int memSize) { // memSize words of memory, allocated as needed
+      if (memSize <= 0) throw new IllegalArgumentException("Invalid memory size " + memSize);
       this.code = code;
+      this.memSize = memSize;
+      this.memory = new int[Math.min(INITIAL_MEMORY, memSize)];
+      this.base = memSize - memory.length;
+      this.sp = this.fp = memSize;
+      this.display = new int[displayLevels(code, code.length)];
+    }
+    
+    private static final int INITIAL_MEMORY = 1024; // words allocated below memSize at the start
+    
+    // number of operand words following an opcode (labels included)
+    static int operands(int bytecode) {
+      switch (bytecode) {
+        case SVMParser.PUSH:
+        case SVMParser.BRANCH:
+        case SVMParser.BRANCHEQ:
+        case SVMParser.BRANCHLESSEQ:
+        case SVMParser.RET:
+        case SVMParser.LOADDISP:
+        case SVMParser.STOREDISP:
+          return 1;
+        case SVMParser.CALL:
+        case SVMParser.LOADVAR:
+        case SVMParser.DISPCALL:
+        case SVMParser.DISPLOADVAR:
+        case SVMParser.TAILJS:
+          return 2;
+        default:
+          return 0;
+      }
+    }
+    
+    // nesting levels used by the display instructions in the first length words of code: every
+    // engine sizes its display on them, so a level that was never stored reads 0
+    static int displayLevels(int[] code, int length) {
+      int levels = 0;
+      for (int ip = 0; ip < length; ) {
+        int bytecode = code[ip++];
+        if ((bytecode == SVMParser.LOADDISP || bytecode == SVMParser.STOREDISP || bytecode == SVMParser.DISPCALL
+            || bytecode == SVMParser.DISPLOADVAR) && ip < length) {
+          int level = code[ip];
+          if (level < 0) throw new SVMException("Invalid display level " + level + " at code address " + (ip-1));
+          levels = Math.max(levels, bytecode == SVMParser.DISPCALL ? level + 2 : level + 1); // dcall also reads level+1
+        }
+        ip += operands(bytecode);
+      }
+      return levels;
     }
     
     public void cpu() {
+      try {
+        run();
+      } catch (ArrayIndexOutOfBoundsException e) { // memory accesses are checked by read and write
+        throw new SVMException("Invalid code address " + (ip-1));
+      }
+    }
+    
+    private void run() {
       while ( true ) {
         int bytecode = code[ip++]; // fetch
         int v1,v2;
@@ -53,10 +116,11 @@ public class ExecuteVM {
             break;
           case SVMParser.STOREW : //
             address = pop();
-            memory[address] = pop();    
+            write(address, pop());
             break;
           case SVMParser.LOADW : //
-            push(memory[pop()]);
+            address = pop();
+            push(read(address));
             break;
           case SVMParser.BRANCH : 
             address = code[ip];
@@ -79,6 +143,65 @@ public class ExecuteVM {
             ra = ip;
             ip = address;
             break;
+          case SVMParser.CALL : // lfp, d times lw, stm, ltm, ltm, push o, add, lw, js
+            v1 = code[ip++];
+            v2 = code[ip++];
+            address = fp; // frame reached following v1 access links
+            for (int k = 0; k < v1; k++) address = read(address);
+            tm = address;
+            push(address);
+            ra = ip;
+            ip = read(address + v2);
+            break;
+          case SVMParser.LOADVAR : // lfp, d times lw, push o, add, lw
+            v1 = code[ip++];
+            v2 = code[ip++];
+            address = fp;
+            for (int k = 0; k < v1; k++) address = read(address);
+            push(read(address + v2));
+            break;
+          case SVMParser.RET : // stm, pops, sra, pop, pops, sfp, ltm, lra, js with v1 parameters
+            v1 = code[ip++];
+            tm = pop();
+            ra = read(fp - 1);
+            address = fp + v1 + 1; // control link
+            fp = read(address);
+            sp = address + 1;
+            push(tm);
+            ip = ra;
+            break;
+          case SVMParser.TAILJS : // the frame of the caller (with v2 parameters) is replaced by the v1 words on top
+            v1 = code[ip++];
+            v2 = code[ip++];
+            address = pop();
+            ra = read(fp - 1);
+            int to = fp + v2 + 1 - v1; // the control link stays in place
+            for (int k = v1 - 1; k >= 0; k--) // areas may overlap, the destination is above
+              write(to + k, read(sp + k));
+            sp = to;
+            ip = address;
+            break;
+          case SVMParser.LOADDISP :
+            v1 = code[ip++];
+            push(display[v1]);
+            break;
+          case SVMParser.STOREDISP :
+            v1 = code[ip++];
+            display[v1] = pop();
+            break;
+          case SVMParser.DISPCALL : // ldisp l+1, ldisp l, push o, add, lw, js
+            v1 = code[ip++];
+            v2 = code[ip++];
+            push(display[v1 + 1]);
+            ra = ip;
+            ip = read(display[v1] + v2);
+            break;
+          case SVMParser.DISPLOADVAR : // ldisp l, push o, add, lw
+            v1 = code[ip++];
+            v2 = code[ip++];
+            address = display[v1] + v2;
+            push(read(address));
+            break;
          case SVMParser.STORERA : //
             ra=pop();
             break;
@@ -102,12 +225,13 @@ public class ExecuteVM {
             break;
          case SVMParser.STOREHP : //
             hp=pop();
+            if (sp <= hp) throw SVMException.outOfMemory(hp, sp);
             break;
          case SVMParser.LOADHP : //
             push(hp);
             break;
          case SVMParser.PRINT :
-            System.out.println((sp<MEMSIZE)?memory[sp]:"Empty stack!");
+            System.out.println((sp<memSize)?read(sp):"Empty stack!");
             break;
          case SVMParser.HALT :
             return;
@@ -116,11 +240,43 @@ public class ExecuteVM {
     } 
     
     private int pop() {
-      return memory[sp++];
+      return read(sp++);
     }
     
     private void push(int v) {
-      memory[--sp] = v;
+      if (sp-1 <= hp) throw SVMException.stackOverflow(sp-1, hp);
+      write(--sp, v);
+    }
+    
+    // memory is a flat array of the words from base to memSize, where the stack starts: it is
+    // grown (downwards) only when an address below base is written, and the addresses below
+    // base read as 0, as in a flat zero-initialized array of memSize words
+    private int read(int address) {
+      int i = address - base;
+      if (i >= 0 && i < memory.length) return memory[i];
+      return readOutside(address);
+    }
+    
+    private void write(int address, int value) {
+      int i = address - base;
+      if (i >= 0 && i < memory.length) memory[i] = value;
+      else writeOutside(address, value);
+    }
+    
+    // out of the accessors, so that they stay small enough to be inlined in the loop
+    private int readOutside(int address) {
+      if (address < 0 || address >= memSize) throw SVMException.invalidAddress(address);
+      return 0;
+    }
+    
+    private void writeOutside(int address, int value) {
+      if (address < 0 || address >= memSize) throw SVMException.invalidAddress(address);
+      int newBase = Math.max(Math.min(address, memSize - 2 * memory.length), 0);
+      int[] m = new int[memSize - newBase];
+      System.arraycopy(memory, 0, m, base - newBase, memory.length);
+      memory = m;
+      base = newBase;
+      memory[address - base] = value;
     }
     
-}
\ No newline at end of file
+}
@@ -0,0 +1,278 @@
+package svm;
+
+/**
+ * The reference interpreter of {@link ExecuteVM} with a copying garbage collector of the heap
+ * (see {@link HeapCollector}), selected by Test --gc.
+ *
+ * Every word of memory, $tm and the value being pushed carry a tag telling whether they hold a
+ * heap pointer (pushed by lhp, or computed from one by add/sub), so that the collector knows
+ * the roots and the pointers inside the heap. The collector runs on calls and returns once the
+ * heap grows past a threshold (doubling the live data after each collection) and whenever
+ * memory runs out. Keeping the tags costs on every push, pop, load and store, so the collector
+ * lives in its own engine and ExecuteVM stays untagged.
+ */
+public class GCExecuteVM {
+    
+    private int[] code;
+    private Memory memory;
+    
+    private int ip = 0;
+    private int sp;
+    
+    private int hp = 0;       
+    private int fp; 
+    private int ra;           
+    private int tm;
+    
+    private final int[] display; // frame of each nesting level, with the display calling convention
+    
+    private final Memory tags;      // 1 for the words holding heap pointers
+    private boolean tmTag;          // tag of $tm
+    private boolean popped;         // tag of the last popped word
+    private final HeapCollector collector = new HeapCollector();
+    private int gcThreshold = GC_THRESHOLD;
+    
+    private static final int GC_THRESHOLD = 1024; // heap words allocated before the first collection
+    
+    public GCExecuteVM(int[] code, int memSize) { // memSize words of memory, allocated as needed
+      this.code = code;
+      this.memory = new Memory(memSize);
+      this.tags = new Memory(memSize);
+      this.sp = this.fp = memSize;
+      this.display = new int[ExecuteVM.displayLevels(code, code.length)];
+    }
+    
+    public String gcStats() {
+      return collector.report();
+    }
+
+    public int collections() {
+      return collector.collections;
+    }
+
+    public long reclaimedWords() {
+      return collector.reclaimedWords;
+    }
+    
+    public void cpu() {
+      try {
+        run();
+      } catch (ArrayIndexOutOfBoundsException e) { // memory accesses are checked by Memory
+        throw new SVMException("Invalid code address " + (ip-1));
+      }
+    }
+    
+    private void run() {
+      while ( true ) {
+        int bytecode = code[ip++]; // fetch
+        int v1,v2;
+        boolean t1;
+        int address;
+        switch ( bytecode ) {
+          case SVMParser.PUSH:
+            push( code[ip++] );
+            break;
+          case SVMParser.POP:
+            pop();
+            break;
+          case SVMParser.ADD : // pointer + offset (or offset + pointer) is a pointer
+            v1=pop();
+            t1=popped;
+            v2=pop();
+            push(v2 + v1, t1 != popped);
+            break;
+          case SVMParser.MULT :
+            v1=pop();
+            v2=pop();
+            push(v2 * v1);
+            break;
+          case SVMParser.DIV :
+            v1=pop();
+            v2=pop();
+            push(v2 / v1);
+            break;
+          case SVMParser.SUB : // pointer - offset is a pointer
+            v1=pop();
+            t1=popped;
+            v2=pop();
+            push(v2 - v1, popped && !t1);
+            break;
+          case SVMParser.STOREW : //
+            address = pop();
+            memory.write(address, pop());
+            tags.write(address, popped ? 1 : 0);
+            break;
+          case SVMParser.LOADW : //
+            address = pop();
+            push(memory.read(address), tags.read(address) != 0);
+            break;
+          case SVMParser.BRANCH : 
+            collector.boundary(hp);
+            address = code[ip];
+            ip = address;
+            break;
+          case SVMParser.BRANCHEQ :
+            collector.boundary(hp);
+            address = code[ip++];
+            v1=pop();
+            v2=pop();
+            if (v2 == v1) ip = address;
+            break;
+          case SVMParser.BRANCHLESSEQ :
+            collector.boundary(hp);
+            address = code[ip++];
+            v1=pop();
+            v2=pop();
+            if (v2 <= v1) ip = address;
+            break;
+          case SVMParser.JS : //
+            address = pop();
+            ra = ip;
+            ip = address;
+            safepoint();
+            break;
+          case SVMParser.CALL : // lfp, d times lw, stm, ltm, ltm, push o, add, lw, js
+            v1 = code[ip++];
+            v2 = code[ip++];
+            address = fp; // frame reached following v1 access links
+            for (int k = 0; k < v1; k++) address = memory.read(address);
+            tm = address;
+            tmTag = false;
+            push(address);
+            ra = ip;
+            ip = memory.read(address + v2);
+            safepoint();
+            break;
+          case SVMParser.LOADVAR : // lfp, d times lw, push o, add, lw
+            v1 = code[ip++];
+            v2 = code[ip++];
+            address = fp;
+            for (int k = 0; k < v1; k++) address = memory.read(address);
+            push(memory.read(address + v2), tags.read(address + v2) != 0);
+            break;
+          case SVMParser.RET : // stm, pops, sra, pop, pops, sfp, ltm, lra, js with v1 parameters
+            v1 = code[ip++];
+            tm = pop();
+            tmTag = popped;
+            ra = memory.read(fp - 1);
+            address = fp + v1 + 1; // control link
+            fp = memory.read(address);
+            sp = address + 1;
+            push(tm, tmTag);
+            ip = ra;
+            safepoint();
+            break;
+          case SVMParser.TAILJS : // the frame of the caller (with v2 parameters) is replaced by the v1 words on top
+            v1 = code[ip++];
+            v2 = code[ip++];
+            address = pop();
+            ra = memory.read(fp - 1);
+            int to = fp + v2 + 1 - v1; // the control link stays in place
+            for (int k = v1 - 1; k >= 0; k--) { // areas may overlap, the destination is above
+              memory.write(to + k, memory.read(sp + k));
+              tags.write(to + k, tags.read(sp + k));
+            }
+            sp = to;
+            ip = address;
+            safepoint();
+            break;
+          case SVMParser.LOADDISP :
+            v1 = code[ip++];
+            push(display[v1]);
+            break;
+          case SVMParser.STOREDISP :
+            v1 = code[ip++];
+            display[v1] = pop();
+            break;
+          case SVMParser.DISPCALL : // ldisp l+1, ldisp l, push o, add, lw, js
+            v1 = code[ip++];
+            v2 = code[ip++];
+            push(display[v1 + 1]);
+            ra = ip;
+            ip = memory.read(display[v1] + v2);
+            safepoint();
+            break;
+          case SVMParser.DISPLOADVAR : // ldisp l, push o, add, lw
+            v1 = code[ip++];
+            v2 = code[ip++];
+            address = display[v1] + v2;
+            push(memory.read(address), tags.read(address) != 0);
+            break;
+         case SVMParser.STORERA : //
+            ra=pop();
+            break;
+         case SVMParser.LOADRA : //
+            push(ra);
+            break;
+         case SVMParser.STORETM : 
+            tm=pop();
+            tmTag=popped;
+            break;
+         case SVMParser.LOADTM : 
+            push(tm, tmTag);
+            break;
+         case SVMParser.LOADFP : //
+            push(fp);
+            break;
+         case SVMParser.STOREFP : //
+            fp=pop();
+            break;
+         case SVMParser.COPYFP : //
+            fp=sp;
+            break;
+         case SVMParser.STOREHP : //
+            v1=pop();
+            if (sp <= v1) v1=collect(v1, popped);
+            hp=v1;
+            if (sp <= hp) throw SVMException.outOfMemory(hp, sp);
+            break;
+         case SVMParser.LOADHP : //
+            push(hp, true);
+            break;
+         case SVMParser.PRINT :
+            System.out.println((sp<memory.size())?memory.read(sp):"Empty stack!");
+            break;
+         case SVMParser.HALT :
+            return;
+        }
+      }
+    } 
+    
+    private int pop() {
+      popped = tags.read(sp) != 0;
+      return memory.read(sp++);
+    }
+    
+    private void push(int v) {
+      push(v, false);
+    }
+    
+    private void push(int v, boolean tag) {
+      if (sp-1 <= hp) v = collect(v, tag);
+      if (sp-1 <= hp) throw SVMException.stackOverflow(sp-1, hp);
+      memory.write(--sp, v);
+      tags.write(sp, tag ? 1 : 0);
+    }
+    
+    // at calls and returns: closes the heap block allocated since the previous control transfer
+    // and collects if the heap has grown past the threshold
+    private void safepoint() {
+      collector.boundary(hp);
+      if (hp >= gcThreshold) collect();
+    }
+    
+    private void collect() {
+      collect(0, false);
+    }
+    
+    // collects the heap, with $tm and v (a value being pushed or stored) as additional roots;
+    // returns v forwarded
+    private int collect(int v, boolean tag) {
+      int[] values = {v, tm};
+      hp = collector.collect(memory, tags, sp, hp, values, new boolean[] {tag, tmTag});
+      tm = values[1];
+      gcThreshold = Math.max(GC_THRESHOLD, 2 * hp);
+      return values[0];
+    }
+    
+}
\ No newline at end of file
@@ -0,0 +1,169 @@
+package svm;
+
+import java.util.Arrays;
+
+/**
+ * Copying garbage collector for the heap of {@link GCExecuteVM} (addresses [0, $hp)).
+ *
+ * SVM code has no object headers, so the collector relies on two facts tracked by the VM:
+ * - pointers are the words whose tag is set: values obtained from LHP, and the results of
+ *   adding an untagged value to (or subtracting it from) a tagged one, propagated through
+ *   memory, the stack and $tm by SW/LW/STM/LTM;
+ * - objects are the heap blocks allocated between two control transfers (the code of NEW and
+ *   of dispatch tables is straight-line), so blocks are closed by {@link #boundary(int)} on
+ *   every jump. The block still being filled (from the last boundary to $hp) is always live.
+ *
+ * A collection marks the blocks reachable from the tagged words of the stack and from the
+ * extra roots given by the VM, copies them into a to-space in address order (so the block
+ * still being filled stays last and allocation can continue after it), forwards all tagged
+ * words and copies the to-space back at the bottom of the heap. Pointers into a block may
+ * point anywhere inside it (objects are referenced through their dispatch pointer word).
+ */
+class HeapCollector {
+
+    int collections = 0;
+    long reclaimedWords = 0;
+    long totalPauseNanos = 0;
+    long maxPauseNanos = 0;
+
+    private int[] starts = new int[64], ends = new int[64]; // closed blocks, in address order
+    private int blocks = 0;
+    private int blockStart = 0;                              // start of the block being filled
+
+    // new start of each block during a collection (-1 if dead)
+    private int[] moved = new int[64];
+    private int oldHp, newHp;
+
+    // called at every control transfer: closes the block allocated since the previous one
+    void boundary(int hp) {
+        if (hp < blockStart) { // $hp moved back: forget the blocks above it
+            while (blocks > 0 && starts[blocks - 1] >= hp) blocks--;
+            if (blocks > 0 && ends[blocks - 1] > hp) ends[blocks - 1] = hp;
+            blockStart = hp;
+            return;
+        }
+        if (hp == blockStart) return;
+        if (blocks == starts.length) {
+            starts = Arrays.copyOf(starts, blocks * 2);
+            ends = Arrays.copyOf(ends, blocks * 2);
+        }
+        starts[blocks] = blockStart;
+        ends[blocks] = hp;
+        blocks++;
+        blockStart = hp;
+    }
+
+    // index of the block containing address p (the block being filled is number blocks), -1 if none
+    private int block(int p) {
+        if (p < 0 || p >= oldHp) return -1;
+        if (p >= blockStart) return blocks;
+        int lo = 0, hi = blocks - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (starts[mid] <= p) lo = mid; else hi = mid - 1;
+        }
+        return p < ends[lo] ? lo : -1;
+    }
+
+    private int start(int b) { return b == blocks ? blockStart : starts[b]; }
+    private int end(int b)   { return b == blocks ? oldHp : ends[b]; }
+
+    // new address of tagged value p after the last collection
+    int forward(int p) {
+        if (p >= oldHp) return p - oldHp + newHp; // at or beyond $hp (e.g. a new $hp being computed)
+        int b = block(p);
+        return b < 0 || moved[b] < 0 ? p : moved[b] + p - start(b);
+    }
+
+    /**
+     * Collects the heap [0, hp); roots are the tagged words of the stack [sp, memory.size())
+     * and the values[i] with tagged[i] set, which are forwarded in place. Returns the new $hp.
+     */
+    int collect(Memory memory, Memory tags, int sp, int hp, int[] values, boolean[] tagged) {
+        long begin = System.nanoTime();
+        if (hp < blockStart) boundary(hp);
+        oldHp = hp;
+        if (moved.length < blocks + 1) moved = new int[starts.length + 1];
+        Arrays.fill(moved, 0, blocks + 1, -1);
+
+        // mark: moved[b] = 0 for reachable blocks
+        int[] work = new int[blocks + 1];
+        int pending = 0;
+        for (int a = sp; a < memory.size(); a++)
+            if (tags.read(a) != 0) pending = mark(memory.read(a), work, pending);
+        for (int i = 0; i < values.length; i++)
+            if (tagged[i]) pending = mark(values[i], work, pending);
+        while (pending > 0) {
+            int b = work[--pending];
+            for (int a = start(b); a < end(b); a++)
+                if (tags.read(a) != 0) pending = mark(memory.read(a), work, pending);
+        }
+
+        // copy live blocks to the to-space, in address order; forward() needs the old block table,
+        // so the one of the to-space is built apart and installed at the end
+        int live = 0;
+        for (int b = 0; b < blocks; b++)
+            if (moved[b] == 0) live += ends[b] - starts[b];
+        int[] toSpace = new int[live];
+        boolean[] toTags = new boolean[live];
+        int[] newStarts = new int[starts.length], newEnds = new int[ends.length];
+        int free = 0, kept = 0;
+        for (int b = 0; b < blocks; b++) {
+            if (moved[b] < 0) continue;
+            moved[b] = free;
+            for (int a = starts[b]; a < ends[b]; a++, free++) {
+                toSpace[free] = memory.read(a);
+                toTags[free] = tags.read(a) != 0;
+            }
+            newStarts[kept] = moved[b];
+            newEnds[kept] = free;
+            kept++;
+        }
+        moved[blocks] = free; // the block being filled
+        newHp = free + (hp - blockStart);
+
+        // forward pointers, then copy back
+        for (int i = 0; i < live; i++)
+            if (toTags[i]) toSpace[i] = forward(toSpace[i]);
+        for (int a = blockStart; a < hp; a++)
+            if (tags.read(a) != 0) memory.write(a, forward(memory.read(a)));
+        int fillingFrom = blockStart;
+        for (int i = 0; i < live; i++) {
+            memory.write(i, toSpace[i]);
+            tags.write(i, toTags[i] ? 1 : 0);
+        }
+        for (int a = fillingFrom, to = free; a < hp; a++, to++) { // moves down the block being filled
+            memory.write(to, memory.read(a));
+            tags.write(to, tags.read(a));
+        }
+        for (int a = newHp; a < hp; a++) tags.write(a, 0);
+        for (int a = sp; a < memory.size(); a++)
+            if (tags.read(a) != 0) memory.write(a, forward(memory.read(a)));
+        for (int i = 0; i < values.length; i++)
+            if (tagged[i]) values[i] = forward(values[i]);
+
+        starts = newStarts;
+        ends = newEnds;
+        blocks = kept;
+        blockStart = free;
+        reclaimedWords += hp - newHp;
+        collections++;
+        long pause = System.nanoTime() - begin;
+        totalPauseNanos += pause;
+        maxPauseNanos = Math.max(maxPauseNanos, pause);
+        return newHp;
+    }
+
+    private int mark(int p, int[] work, int pending) {
+        int b = block(p);
+        if (b < 0 || moved[b] == 0) return pending;
+        moved[b] = 0;
+        work[pending] = b;
+        return pending + 1;
+    }
+
+    String report() {
+        return String.format("GC: %d collections, %d words reclaimed, pause total %.3f ms, max %.3f ms",
+                collections, reclaimedWords, totalPauseNanos / 1e6, maxPauseNanos / 1e6);
+    }
+}
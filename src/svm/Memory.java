@@ -0,0 +1,66 @@
+package svm;
+
+import java.util.Arrays;
+
+/**
+ * Memory of the SVM: addresses 0..size()-1, with the heap growing up from 0 and the stack
+ * growing down from size().
+ *
+ * Only the two ends that are actually used are allocated: a heap segment covering addresses
+ * [0, heap.length) and a stack segment covering [stackBase, size), both doubled on demand
+ * (without ever overlapping), so the address space can be much larger than the program needs.
+ * Addresses in between read as 0, as in a flat zero-initialized array.
+ */
+public class Memory {
+
+    private static final int INITIAL_SEGMENT = 1024;
+
+    private final int size;
+    private int[] heap;
+    private int[] stack;
+    private int stackBase; // address of stack[0]
+
+    public Memory(int size) {
+        if (size <= 0) throw new IllegalArgumentException("Invalid memory size " + size);
+        this.size = size;
+        heap = new int[Math.min(INITIAL_SEGMENT, size / 2)];
+        stack = new int[Math.min(INITIAL_SEGMENT, size - heap.length)];
+        stackBase = size - stack.length;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int read(int address) {
+        if (address >= stackBase && address < size) return stack[address - stackBase];
+        if (address >= 0 && address < heap.length) return heap[address];
+        if (address < 0 || address >= size) throw SVMException.invalidAddress(address);
+        return 0;
+    }
+
+    public void write(int address, int value) {
+        if (address >= stackBase && address < size) stack[address - stackBase] = value;
+        else if (address >= 0 && address < heap.length) heap[address] = value;
+        else {
+            if (address < 0 || address >= size) throw SVMException.invalidAddress(address);
+            grow(address);
+            write(address, value);
+        }
+    }
+
+    // extends the segment nearer to address (which lies between the two) until it covers it
+    private void grow(int address) {
+        if (address - heap.length < stackBase - address) {
+            int length = Math.min(Math.max(heap.length * 2, address + 1), stackBase);
+            heap = Arrays.copyOf(heap, length);
+        } else {
+            int base = Math.max(size - Math.max(stack.length * 2, size - address), heap.length);
+            int[] s = new int[size - base];
+            System.arraycopy(stack, 0, s, stackBase - base, stack.length);
+            stack = s;
+            stackBase = base;
+        }
+    }
+
+}
@@ -0,0 +1,98 @@
+package svm;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Binary object file of an assembled SVM program, loadable without lexing and parsing assembly.
+ *
+ * Layout (big endian):
+ *   int   magic "SVMO"
+ *   int   version
+ *   int   flags (HAS_SOURCE_MAP)
+ *   int   n, number of code words
+ *   int   number of labels
+ *   int[n] code
+ *   labels: int address, unsigned short length, UTF-8 name
+ *   int[n] sourceMap (only if HAS_SOURCE_MAP)
+ *
+ * The reader maps the file in memory and bulk-copies the code into an array of at least
+ * ExecuteVM.CODESIZE words, exactly like the one produced by SVMParser.
+ */
+public class ObjectFile {
+
+    public static final int MAGIC = 0x53564D4F; // "SVMO"
+    public static final int VERSION = 1;
+    private static final int HAS_SOURCE_MAP = 1;
+
+    public final int[] code;                  // padded to ExecuteVM.CODESIZE words
+    public final int length;                  // number of meaningful words of code
+    public final int[] sourceMap;             // null if not present
+    public final Map<String,Integer> labels;  // resolved label addresses
+
+    public ObjectFile(int[] code, int length, int[] sourceMap, Map<String,Integer> labels) {
+        this.code = code;
+        this.length = length;
+        this.sourceMap = sourceMap;
+        this.labels = labels;
+    }
+
+    public void write(Path path) throws IOException {
+        ByteArrayOutputStream labelBytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(labelBytes); // big endian, as the buffer
+        for (Map.Entry<String,Integer> label : labels.entrySet()) {
+            byte[] name = label.getKey().getBytes(StandardCharsets.UTF_8);
+            out.writeInt(label.getValue());
+            out.writeShort(name.length);
+            out.write(name);
+        }
+        ByteBuffer buf = ByteBuffer.allocate(5 * 4 + length * 4 * (sourceMap != null ? 2 : 1) + labelBytes.size());
+        buf.putInt(MAGIC).putInt(VERSION).putInt(sourceMap != null ? HAS_SOURCE_MAP : 0)
+                .putInt(length).putInt(labels.size());
+        buf.asIntBuffer().put(code, 0, length);
+        buf.position(buf.position() + length * 4);
+        buf.put(labelBytes.toByteArray());
+        if (sourceMap != null) buf.asIntBuffer().put(sourceMap, 0, length);
+        buf.rewind();
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buf.hasRemaining()) ch.write(buf);
+        }
+    }
+
+    public static ObjectFile read(Path path) throws IOException {
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            try {
+                if (buf.getInt() != MAGIC) throw new IOException(path + " is not an SVM object file");
+                int version = buf.getInt();
+                if (version != VERSION) throw new IOException(path + " has unsupported object file version " + version);
+                int flags = buf.getInt();
+                int length = buf.getInt();
+                int labelCount = buf.getInt();
+                int[] code = new int[Math.max(length, ExecuteVM.CODESIZE)];
+                buf.asIntBuffer().get(code, 0, length);
+                buf.position(buf.position() + length * 4);
+                Map<String,Integer> labels = new LinkedHashMap<>();
+                for (int i = 0; i < labelCount; i++) {
+                    int address = buf.getInt();
+                    byte[] b = new byte[buf.getShort() & 0xFFFF];
+                    buf.get(b);
+                    labels.put(new String(b, StandardCharsets.UTF_8), address);
+                }
+                int[] sourceMap = null;
+                if ((flags & HAS_SOURCE_MAP) != 0) {
+                    sourceMap = new int[code.length];
+                    buf.asIntBuffer().get(sourceMap, 0, length);
+                }
+                return new ObjectFile(code, length, sourceMap, labels);
+            } catch (BufferUnderflowException e) {
+                throw new IOException(path + " is truncated", e);
+            }
+        }
+    }
+}
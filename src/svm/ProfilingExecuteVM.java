@@ -0,0 +1,562 @@
+package svm;
+
+import java.util.*;
+
+/**
+ * Execution engine for the SVM that profiles the program it runs, producing the same output as
+ * {@link ExecuteVM#cpu()} (without garbage collector). It is a separate class so that the other
+ * engines do not pay anything for profiling.
+ *
+ * It counts the instructions executed at each address, hence by opcode and by function.
+ * Functions are found through the labels of the code: a function is the code from a functionN
+ * label (as generated by CompilerContext.freshFunLabel) to the next one, the code before the first one
+ * is the main program. Calls are counted for the called function on js to the address of a
+ * function and on call, dcall and tjs. A shadow stack of the active functions, pushed on calls
+ * and popped on returns (ret, or js to the return address of the innermost call), gives their
+ * inclusive instruction counts: those executed from the call of the function to its return,
+ * counted once for recursive activations. A tail call (tjs) is the return of the caller
+ * followed by the call of the callee.
+ *
+ * With {@link #withSampling(int)} nothing is counted: every period instructions the call stack
+ * is rebuilt walking the frames from $fp, each frame giving the return address into its caller
+ * (at $fp-1) and the frame of the caller (the control link, at $fp+P+1 for a function with P
+ * parameters, found in its ret, tjs or pop sequence). As the frame is not the one of the current
+ * function while it is being created or removed (from the call to lra, and from sfp to the js
+ * returning to the caller), a sample falling there is taken at the first instruction after it.
+ * Samples are reported as folded stacks (main;function3;function1 count), the input format of
+ * flame graph tools.
+ */
+public class ProfilingExecuteVM {
+
+    private static final String MAIN = "main";
+
+    private final int[] code;
+    private final Memory memory;
+
+    private int ip = 0;
+    private int sp;
+    private int hp = 0;
+    private int fp;
+    private int ra;
+    private int tm;
+    private final int[] display;
+
+    // functions: names[f] starts at start[f], functionOf[a] is the function of code address a (0 is main)
+    private final String[] names;
+    private final int[] start;
+    private final int[] functionOf;
+    private final boolean[] entry;   // entry[a]: a is the first address of a function
+
+    // counters
+    private final long[] byAddress;  // instructions executed at each address
+    private final long[] calls;
+    private final long[] inclusive;
+    private long executed = 0;
+
+    // shadow stack of the active functions
+    private int[] stackFunction = new int[64];
+    private int[] stackReturn = new int[64];    // return address of the call
+    private long[] stackEntry = new long[64];   // instructions executed before the call
+    private int depth = 0;
+    private final int[] active;                 // activations of each function on the shadow stack
+
+    // sampling
+    private static final int FRAME = 0, PROLOGUE = 1, EPILOGUE = 2; // where an address is in its function
+    public static final int SAMPLE_PERIOD = 19997; // default, prime so that it does not follow the period of loops
+    private int period = 0;                      // 0: exact counting
+    private long countdown;                      // instructions to the next sample
+    private final int[] blockLength;             // instructions from an address to the next control transfer, included
+    private final int[] params;                  // parameters of each function, -1 if not found
+    private final boolean[] stable;              // stable[a]: at address a the frame of $fp is the one of the function
+    private int[] walk = new int[64];            // functions of the sampled stack, from the top
+    // sampled stacks as a tree: node 0 is main, node 1 an unknown caller, every other node a call
+    // of nodeFunction[k] from nodeParent[k], found in children by (parent << 32 | function)
+    private int[] nodeParent = {-1, -1}, nodeFunction = {0, -1};
+    private long[] nodeSamples = new long[2];
+    private int nodes = 2;
+    private final Map<Long,Integer> children = new HashMap<>();
+    private int[] lastPath = new int[64];        // nodes of the previous sample from its root, usually shared by the next one
+    private int lastLength = 0;
+
+    public ProfilingExecuteVM(int[] code, Map<String,Integer> labels) {
+        this(code, labels, ExecuteVM.MEMSIZE);
+    }
+
+    public ProfilingExecuteVM(int[] code, Map<String,Integer> labels, int memSize) {
+        this.code = code;
+        this.memory = new Memory(memSize);
+        this.sp = this.fp = memSize;
+        this.display = new int[ExecuteVM.displayLevels(code, code.length)];
+        List<Map.Entry<String,Integer>> functions = new ArrayList<>();
+        for (Map.Entry<String,Integer> l : labels.entrySet())
+            if (l.getKey().matches("function[0-9]+") && l.getValue() < code.length) functions.add(l);
+        functions.sort(Map.Entry.comparingByValue());
+        names = new String[functions.size() + 1];
+        start = new int[functions.size() + 1];
+        names[0] = MAIN;
+        for (int f = 1; f < names.length; f++) {
+            names[f] = functions.get(f - 1).getKey();
+            start[f] = functions.get(f - 1).getValue();
+        }
+        functionOf = new int[code.length];
+        entry = new boolean[code.length];
+        for (int f = 1, a = 0; a < code.length; a++) {
+            while (f < start.length && start[f] == a) entry[start[f++]] = true;
+            functionOf[a] = f - 1;
+        }
+        byAddress = new long[code.length];
+        calls = new long[names.length];
+        inclusive = new long[names.length];
+        active = new int[names.length];
+        params = new int[names.length];
+        stable = new boolean[code.length];
+        blockLength = new int[code.length];
+        decode();
+        enter(0, -1);
+    }
+
+    // samples the call stack every period instructions instead of counting them
+    public ProfilingExecuteVM withSampling(int period) {
+        if (period <= 0) throw new IllegalArgumentException("Invalid sampling period " + period);
+        this.period = period;
+        this.countdown = period;
+        return this;
+    }
+
+    // finds the parameters of each function, the addresses where frames are consistent and the
+    // length of blocks
+    private void decode() {
+        Arrays.fill(params, -1);
+        params[0] = 0;
+        int state = FRAME;      // main has no prologue
+        int previous = -1;      // opcode of the previous instruction
+        int pops = -1;          // pops after "sra pop", -1 if not in such a sequence
+        boolean[] instruction = new boolean[code.length]; // instruction[a]: an instruction starts at a
+        for (int a = 0; a < code.length; a += 1 + ExecuteVM.operands(code[a])) {
+            instruction[a] = true;
+            int f = functionOf[a], op = code[a];
+            if (entry[a]) state = PROLOGUE;
+            stable[a] = state == FRAME;
+            // the state changes from the next instruction
+            if (state == PROLOGUE && op == SVMParser.LOADRA) state = FRAME;
+            else if (state == FRAME && op == SVMParser.STOREFP && f > 0) state = EPILOGUE;
+            else if (state == EPILOGUE && op == SVMParser.JS) state = FRAME;
+            if (f > 0 && params[f] < 0 && a + 2 < code.length) {
+                if (op == SVMParser.RET) params[f] = code[a + 1];
+                else if (op == SVMParser.TAILJS) params[f] = code[a + 2];
+                else if (op == SVMParser.POP && previous == SVMParser.STORERA) pops = 0;
+                else if (op == SVMParser.POP && pops >= 0) pops++;
+                else if (op == SVMParser.STOREFP && pops >= 0) params[f] = pops;
+            }
+            if (op != SVMParser.POP) pops = -1;
+            previous = op;
+        }
+        int next = 0; // block length at the next instruction
+        for (int a = code.length - 1; a >= 0; a--) {
+            if (!instruction[a]) continue;
+            switch (code[a]) {
+                case SVMParser.BRANCH: case SVMParser.BRANCHEQ: case SVMParser.BRANCHLESSEQ: case SVMParser.JS:
+                case SVMParser.CALL: case SVMParser.DISPCALL: case SVMParser.RET: case SVMParser.TAILJS: case SVMParser.HALT:
+                    next = 0;
+            }
+            blockLength[a] = next = next + 1;
+        }
+    }
+
+    public void cpu() {
+        try {
+            run();
+        } catch (ArrayIndexOutOfBoundsException e) { // memory accesses are checked by Memory
+            throw new SVMException("Invalid code address " + (ip-1));
+        } finally {
+            while (depth > 0) exit(); // the functions still active end here, on halt or on error
+        }
+    }
+
+    private void run() {
+        final boolean counting = period == 0;
+        if (!counting) transferred();
+        while (true) {
+            if (counting) {
+                byAddress[ip]++;
+                executed++;
+            }
+            int bytecode = code[ip++];
+            int v1, v2;
+            int address;
+            switch (bytecode) {
+                case SVMParser.PUSH:
+                    push(code[ip++]);
+                    break;
+                case SVMParser.POP:
+                    pop();
+                    break;
+                case SVMParser.ADD:
+                    v1 = pop();
+                    v2 = pop();
+                    push(v2 + v1);
+                    break;
+                case SVMParser.MULT:
+                    v1 = pop();
+                    v2 = pop();
+                    push(v2 * v1);
+                    break;
+                case SVMParser.DIV:
+                    v1 = pop();
+                    v2 = pop();
+                    push(v2 / v1);
+                    break;
+                case SVMParser.SUB:
+                    v1 = pop();
+                    v2 = pop();
+                    push(v2 - v1);
+                    break;
+                case SVMParser.STOREW:
+                    address = pop();
+                    memory.write(address, pop());
+                    break;
+                case SVMParser.LOADW:
+                    push(memory.read(pop()));
+                    break;
+                case SVMParser.BRANCH:
+                    ip = code[ip];
+                    if (!counting) transferred();
+                    break;
+                case SVMParser.BRANCHEQ:
+                    address = code[ip++];
+                    v1 = pop();
+                    v2 = pop();
+                    if (v2 == v1) ip = address;
+                    if (!counting) transferred();
+                    break;
+                case SVMParser.BRANCHLESSEQ:
+                    address = code[ip++];
+                    v1 = pop();
+                    v2 = pop();
+                    if (v2 <= v1) ip = address;
+                    if (!counting) transferred();
+                    break;
+                case SVMParser.JS:
+                    address = pop();
+                    if (counting) {
+                        if (depth > 1 && address == stackReturn[depth - 1]) exit();
+                        else if (address >= 0 && address < code.length && entry[address]) enter(functionOf[address], ip);
+                    }
+                    ra = ip;
+                    ip = address;
+                    if (!counting) transferred();
+                    break;
+                case SVMParser.CALL:
+                    v1 = code[ip++];
+                    v2 = code[ip++];
+                    address = fp;
+                    for (int k = 0; k < v1; k++) address = memory.read(address);
+                    tm = address;
+                    push(address);
+                    ra = ip;
+                    ip = memory.read(address + v2);
+                    if (counting) enter(functionOf[ip], ra);
+                    else transferred();
+                    break;
+                case SVMParser.LOADVAR:
+                    v1 = code[ip++];
+                    v2 = code[ip++];
+                    address = fp;
+                    for (int k = 0; k < v1; k++) address = memory.read(address);
+                    push(memory.read(address + v2));
+                    break;
+                case SVMParser.RET:
+                    v1 = code[ip++];
+                    tm = pop();
+                    ra = memory.read(fp - 1);
+                    address = fp + v1 + 1;
+                    fp = memory.read(address);
+                    sp = address + 1;
+                    push(tm);
+                    ip = ra;
+                    if (!counting) transferred();
+                    else if (depth > 1) exit();
+                    break;
+                case SVMParser.TAILJS:
+                    v1 = code[ip++];
+                    v2 = code[ip++];
+                    address = pop();
+                    ra = memory.read(fp - 1);
+                    int to = fp + v2 + 1 - v1;
+                    for (int k = v1 - 1; k >= 0; k--) memory.write(to + k, memory.read(sp + k));
+                    sp = to;
+                    ip = address;
+                    if (!counting) transferred();
+                    else if (depth > 1) {
+                        int returnAddress = stackReturn[depth - 1];
+                        exit();
+                        enter(functionOf[ip], returnAddress);
+                    }
+                    break;
+                case SVMParser.LOADDISP:
+                    v1 = code[ip++];
+                    push(display[v1]);
+                    break;
+                case SVMParser.STOREDISP:
+                    v1 = code[ip++];
+                    display[v1] = pop();
+                    break;
+                case SVMParser.DISPCALL:
+                    v1 = code[ip++];
+                    v2 = code[ip++];
+                    push(display[v1 + 1]);
+                    ra = ip;
+                    ip = memory.read(display[v1] + v2);
+                    if (counting) enter(functionOf[ip], ra);
+                    else transferred();
+                    break;
+                case SVMParser.DISPLOADVAR:
+                    v1 = code[ip++];
+                    v2 = code[ip++];
+                    push(memory.read(display[v1] + v2));
+                    break;
+                case SVMParser.STORERA:
+                    ra = pop();
+                    break;
+                case SVMParser.LOADRA:
+                    push(ra);
+                    break;
+                case SVMParser.STORETM:
+                    tm = pop();
+                    break;
+                case SVMParser.LOADTM:
+                    push(tm);
+                    break;
+                case SVMParser.LOADFP:
+                    push(fp);
+                    break;
+                case SVMParser.STOREFP:
+                    fp = pop();
+                    break;
+                case SVMParser.COPYFP:
+                    fp = sp;
+                    break;
+                case SVMParser.STOREHP:
+                    hp = pop();
+                    if (sp <= hp) throw SVMException.outOfMemory(hp, sp);
+                    break;
+                case SVMParser.LOADHP:
+                    push(hp);
+                    break;
+                case SVMParser.PRINT:
+                    System.out.println((sp < memory.size()) ? memory.read(sp) : "Empty stack!");
+                    break;
+                case SVMParser.HALT:
+                    return;
+            }
+        }
+    }
+
+    private int pop() {
+        return memory.read(sp++);
+    }
+
+    private void push(int v) {
+        if (sp - 1 <= hp) throw SVMException.stackOverflow(sp - 1, hp);
+        memory.write(--sp, v);
+    }
+
+    // at the start of each block of instructions (executed up to the next jump, branch, call or
+    // return): counts them, and samples once a period of instructions has been run
+    private void transferred() {
+        if (ip >= 0 && ip < code.length && (countdown -= blockLength[ip]) <= 0 && stable[ip]) {
+            sample();
+            countdown += period;
+        }
+    }
+
+    // adds the call stack, walked from the current frame, to the samples
+    private void sample() {
+        int n = 0, f = functionOf[ip], frame = fp;
+        try {
+            while (f > 0 && params[f] >= 0) {
+                if (n == walk.length) walk = Arrays.copyOf(walk, n * 2);
+                walk[n++] = f;
+                int returnAddress = memory.read(frame - 1);
+                int caller = memory.read(frame + params[f] + 1);
+                if (caller <= frame || returnAddress < 0 || returnAddress >= code.length) { // not a frame
+                    f = -1;
+                    break;
+                }
+                frame = caller;
+                f = functionOf[returnAddress];
+            }
+        } catch (SVMException e) { // not a frame
+            f = -1;
+        }
+        if (f > 0) { // its caller is unknown
+            if (n == walk.length) walk = Arrays.copyOf(walk, n * 2);
+            walk[n++] = f;
+        }
+        int node = f == 0 ? 0 : 1;
+        if (lastPath.length < n + 1) lastPath = Arrays.copyOf(lastPath, Math.max(2 * lastPath.length, n + 1));
+        int depth = 0;
+        boolean shared = lastLength > 0 && lastPath[0] == node;
+        lastPath[depth++] = node;
+        while (n > 0) {
+            int function = walk[--n];
+            shared = shared && depth < lastLength && nodeFunction[lastPath[depth]] == function;
+            node = shared ? lastPath[depth] : child(node, function);
+            lastPath[depth++] = node;
+        }
+        lastLength = depth;
+        nodeSamples[node]++;
+    }
+
+    private int root(int node) {
+        while (node > 1) node = nodeParent[node];
+        return node;
+    }
+
+    private int child(int parent, int function) {
+        Integer node = children.get((long) parent << 32 | function);
+        if (node != null) return node;
+        if (nodes == nodeParent.length) {
+            nodeParent = Arrays.copyOf(nodeParent, nodes * 2);
+            nodeFunction = Arrays.copyOf(nodeFunction, nodes * 2);
+            nodeSamples = Arrays.copyOf(nodeSamples, nodes * 2);
+        }
+        nodeParent[nodes] = parent;
+        nodeFunction[nodes] = function;
+        children.put((long) parent << 32 | function, nodes);
+        return nodes++;
+    }
+
+    private void enter(int function, int returnAddress) {
+        if (depth == stackFunction.length) {
+            stackFunction = Arrays.copyOf(stackFunction, depth * 2);
+            stackReturn = Arrays.copyOf(stackReturn, depth * 2);
+            stackEntry = Arrays.copyOf(stackEntry, depth * 2);
+        }
+        stackFunction[depth] = function;
+        stackReturn[depth] = returnAddress;
+        stackEntry[depth] = executed;
+        depth++;
+        active[function]++;
+        calls[function]++;
+    }
+
+    private void exit() {
+        depth--;
+        int function = stackFunction[depth];
+        if (--active[function] == 0) inclusive[function] += executed - stackEntry[depth];
+    }
+
+    /* ---------------- results ---------------- */
+
+    public long executed() {
+        return executed;
+    }
+
+    // instructions executed at each code address
+    public long[] byAddress() {
+        return byAddress.clone();
+    }
+
+    // instructions executed with each opcode, by instruction name
+    public Map<String,Long> byOpcode() {
+        long[] counts = new long[SVMParser.VOCABULARY.getMaxTokenType() + 1];
+        for (int a = 0; a < code.length; a++) if (byAddress[a] > 0 && code[a] >= 0 && code[a] < counts.length) counts[code[a]] += byAddress[a];
+        Map<String,Long> m = new LinkedHashMap<>();
+        for (int t = 0; t < counts.length; t++) if (counts[t] > 0) m.put(name(t), counts[t]);
+        return m;
+    }
+
+    public List<String> functions() {
+        return Arrays.asList(names);
+    }
+
+    public long calls(String function) {
+        return calls[index(function)];
+    }
+
+    // instructions executed by the code of the function
+    public long exclusive(String function) {
+        int f = index(function);
+        long n = 0;
+        for (int a = 0; a < code.length; a++) if (functionOf[a] == f) n += byAddress[a];
+        return n;
+    }
+
+    // instructions executed from the call of the function to its return, called functions included
+    public long inclusive(String function) {
+        return inclusive[index(function)];
+    }
+
+    private int index(String function) {
+        int f = Arrays.asList(names).indexOf(function);
+        if (f < 0) throw new IllegalArgumentException("Unknown function " + function);
+        return f;
+    }
+
+    // number of samples of each call stack, as "main;function3;function1"
+    public Map<String,Long> samples() {
+        Map<String,Long> m = new TreeMap<>();
+        for (int k = 0; k < nodes; k++) {
+            if (nodeSamples[k] == 0) continue;
+            Deque<String> path = new ArrayDeque<>();
+            for (int node = k; node > 1; node = nodeParent[node]) path.push(names[nodeFunction[node]]);
+            path.push(root(k) == 0 ? MAIN : "[unknown]");
+            m.put(String.join(";", path), nodeSamples[k]);
+        }
+        return m;
+    }
+
+    // samples in the folded format of flame graph tools, one "stack count" line for each stack
+    public String folded() {
+        StringBuilder s = new StringBuilder();
+        samples().forEach((stack, n) -> s.append(stack).append(' ').append(n).append('\n'));
+        return s.toString();
+    }
+
+    static String name(int opcode) {
+        String literal = SVMParser.VOCABULARY.getLiteralName(opcode);
+        return literal != null ? literal.substring(1, literal.length() - 1) : String.valueOf(opcode);
+    }
+
+    // instruction at address a, with its operands
+    private String instruction(int a) {
+        StringBuilder s = new StringBuilder(name(code[a]));
+        for (int k = 1; k <= ExecuteVM.operands(code[a]) && a + k < code.length; k++) s.append(' ').append(code[a + k]);
+        return s.toString();
+    }
+
+    // functions by exclusive count, opcodes by count and the hot addresses (at most hotAddresses)
+    public String report(int hotAddresses) {
+        StringBuilder s = new StringBuilder();
+        s.append(String.format("Instructions executed: %d%n%n", executed));
+        List<String> functions = new ArrayList<>(functions());
+        Map<String,Long> exclusive = new HashMap<>();
+        for (String f : functions) exclusive.put(f, exclusive(f));
+        functions.sort((f, g) -> Long.compare(exclusive.get(g), exclusive.get(f)));
+        s.append(String.format("%-14s %12s %14s %7s %14s %7s%n", "function", "calls", "exclusive", "%", "inclusive", "%"));
+        for (String f : functions)
+            if (calls(f) > 0)
+                s.append(String.format("%-14s %12d %14d %7.2f %14d %7.2f%n", f, calls(f),
+                        exclusive.get(f), percent(exclusive.get(f)), inclusive(f), percent(inclusive(f))));
+        List<Map.Entry<String,Long>> opcodes = new ArrayList<>(byOpcode().entrySet());
+        opcodes.sort(Map.Entry.<String,Long>comparingByValue().reversed());
+        s.append(String.format("%n%-14s %12s %7s%n", "opcode", "executed", "%"));
+        for (Map.Entry<String,Long> o : opcodes)
+            s.append(String.format("%-14s %12d %7.2f%n", o.getKey(), o.getValue(), percent(o.getValue())));
+        Integer[] addresses = new Integer[code.length];
+        for (int a = 0; a < code.length; a++) addresses[a] = a;
+        Arrays.sort(addresses, (a, b) -> Long.compare(byAddress[b], byAddress[a]));
+        s.append(String.format("%n%-8s %-14s %-14s %12s %7s%n", "address", "function", "instruction", "executed", "%"));
+        for (int k = 0; k < Math.min(hotAddresses, addresses.length) && byAddress[addresses[k]] > 0; k++) {
+            int a = addresses[k];
+            s.append(String.format("%-8d %-14s %-14s %12d %7.2f%n", a, names[functionOf[a]], instruction(a),
+                    byAddress[a], percent(byAddress[a])));
+        }
+        return s.toString();
+    }
+
+    private double percent(long n) {
+        return executed > 0 ? 100.0 * n / executed : 0;
+    }
+}
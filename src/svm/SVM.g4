@@ -54,6 +54,27 @@ instruction :
 	  | STOREHP         {code[i++] = STOREHP;}   //
 	  | PRINT           {code[i++] = PRINT;}
 	  | HALT            {code[i++] = HALT;}
+	  | CALL d=INTEGER o=INTEGER {code[i++] = CALL;
+	                      code[i++] = Integer.parseInt($d.text);
+	                      code[i++] = Integer.parseInt($o.text);}
+	  | RET n=INTEGER   {code[i++] = RET;
+	                     code[i++] = Integer.parseInt($n.text);}
+	  | LOADVAR d=INTEGER o=INTEGER {code[i++] = LOADVAR;
+	                      code[i++] = Integer.parseInt($d.text);
+	                      code[i++] = Integer.parseInt($o.text);}
+	  | LOADDISP l=INTEGER {code[i++] = LOADDISP;
+	                      code[i++] = Integer.parseInt($l.text);}
+	  | STOREDISP l=INTEGER {code[i++] = STOREDISP;
+	                      code[i++] = Integer.parseInt($l.text);}
+	  | DISPCALL l=INTEGER o=INTEGER {code[i++] = DISPCALL;
+	                      code[i++] = Integer.parseInt($l.text);
+	                      code[i++] = Integer.parseInt($o.text);}
+	  | DISPLOADVAR l=INTEGER o=INTEGER {code[i++] = DISPLOADVAR;
+	                      code[i++] = Integer.parseInt($l.text);
+	                      code[i++] = Integer.parseInt($o.text);}
+	  | TAILJS k=INTEGER n=INTEGER {code[i++] = TAILJS;
+	                      code[i++] = Integer.parseInt($k.text);
+	                      code[i++] = Integer.parseInt($n.text);}
 	  ;
 	  
 /*------------------------------------------------------------------
@@ -83,6 +104,14 @@ LOADHP	 : 'lhp' ;
 STOREHP	 : 'shp' ;	
 PRINT	 : 'print' ;	
 HALT	 : 'halt' ;	
+CALL	 : 'call' ;
+RET	 : 'ret' ;
+LOADVAR	 : 'lv' ;
+LOADDISP : 'ldisp' ;
+STOREDISP: 'sdisp' ;
+DISPCALL : 'dcall' ;
+DISPLOADVAR: 'dlv' ;
+TAILJS	 : 'tjs' ;
  
 COL	 : ':' ;
 LABEL	 : ('a'..'z'|'A'..'Z')('a'..'z' | 'A'..'Z' | '0'..'9')* ;
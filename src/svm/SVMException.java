@@ -0,0 +1,27 @@
+package svm;
+
+/**
+ * Run-time error of an SVM program (stack overflow, out of memory, invalid address),
+ * raised by the execution engines instead of silently corrupting memory.
+ */
+public class SVMException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public SVMException(String message) {
+        super(message);
+    }
+
+    static SVMException stackOverflow(int sp, int hp) {
+        return new SVMException("Stack overflow: $sp " + sp + " reached $hp " + hp);
+    }
+
+    static SVMException outOfMemory(int hp, int sp) {
+        return new SVMException("Out of memory: $hp " + hp + " reached $sp " + sp);
+    }
+
+    static SVMException invalidAddress(int address) {
+        return new SVMException("Invalid memory address " + address);
+    }
+
+}
@@ -0,0 +1,264 @@
+package svm;
+
+/**
+ * Alternative execution engine for the SVM, producing the same output as {@link ExecuteVM#cpu()}.
+ *
+ * The assembled code[] is decoded once into a compact form: every instruction gets a dense
+ * opcode in ops[] and its (optional) operand in args[], with branch targets already translated
+ * to decoded instruction indexes. The dispatch loop then runs over this form keeping all the
+ * registers in local variables, so that the JIT can keep them in machine registers and compile
+ * the dense switch into a single jump table.
+ *
+ * Addresses that are visible to the program (pushed labels, $ra) stay raw code[] addresses,
+ * so memory contents are exactly the ones of the reference interpreter: JS translates the
+ * popped address through addrToIndex[], and the return address is taken from addr[].
+ */
+public class ThreadedExecuteVM {
+
+    // dense opcodes of the decoded form (independent from SVMParser token ids)
+    private static final int NOP = 0, PUSH = 1, POP = 2, ADD = 3, SUB = 4, MULT = 5, DIV = 6,
+            STOREW = 7, LOADW = 8, BRANCH = 9, BRANCHEQ = 10, BRANCHLESSEQ = 11, JS = 12,
+            LOADRA = 13, STORERA = 14, LOADTM = 15, STORETM = 16, LOADFP = 17, STOREFP = 18,
+            COPYFP = 19, LOADHP = 20, STOREHP = 21, PRINT = 22, HALT = 23, CALL = 24, RET = 25,
+            LOADVAR = 26, LOADDISP = 27, STOREDISP = 28, DISPCALL = 29, DISPLOADVAR = 30,
+            TAILJS = 31;
+
+    private final int[] ops;         // decoded opcode of each instruction
+    private final int[] args;        // operand of each instruction (branch targets as instruction indexes)
+    private final int[] args2;       // second operand (of CALL, LOADVAR, DISPCALL, DISPLOADVAR and TAILJS)
+    private final int[] addr;        // code[] address of each instruction (addr[n] = code.length)
+    private final int[] addrToIndex; // instruction index of each code[] address (-1 inside an instruction)
+    private final int displaySize;   // nesting levels used by the display instructions
+
+    private final int[] memory;
+
+    public ThreadedExecuteVM(int[] code) {
+        this(code, ExecuteVM.MEMSIZE);
+    }
+
+    public ThreadedExecuteVM(int[] code, int memSize) {
+        memory = new int[memSize];
+        int n = 0;
+        int[] ops = new int[code.length];
+        int[] args = new int[code.length];
+        int[] args2 = new int[code.length];
+        int[] addr = new int[code.length + 1];
+        addrToIndex = new int[code.length];
+        java.util.Arrays.fill(addrToIndex, -1);
+        for (int ip = 0; ip < code.length; n++) {
+            addrToIndex[ip] = n;
+            addr[n] = ip;
+            int bytecode = code[ip++];
+            ops[n] = decode(bytecode);
+            int operands = ExecuteVM.operands(bytecode);
+            if (operands > 0 && ip < code.length) args[n] = code[ip++];
+            if (operands > 1 && ip < code.length) args2[n] = code[ip++];
+        }
+        addr[n] = code.length;
+        for (int i = 0; i < n; i++)
+            if (ops[i] == BRANCH || ops[i] == BRANCHEQ || ops[i] == BRANCHLESSEQ) args[i] = index(args[i]);
+        this.displaySize = ExecuteVM.displayLevels(code, code.length);
+        this.ops = java.util.Arrays.copyOf(ops, n);
+        this.args = java.util.Arrays.copyOf(args, n);
+        this.args2 = java.util.Arrays.copyOf(args2, n);
+        this.addr = java.util.Arrays.copyOf(addr, n + 1);
+    }
+
+    private static int decode(int bytecode) {
+        switch (bytecode) {
+            case SVMParser.PUSH: return PUSH;
+            case SVMParser.POP: return POP;
+            case SVMParser.ADD: return ADD;
+            case SVMParser.SUB: return SUB;
+            case SVMParser.MULT: return MULT;
+            case SVMParser.DIV: return DIV;
+            case SVMParser.STOREW: return STOREW;
+            case SVMParser.LOADW: return LOADW;
+            case SVMParser.BRANCH: return BRANCH;
+            case SVMParser.BRANCHEQ: return BRANCHEQ;
+            case SVMParser.BRANCHLESSEQ: return BRANCHLESSEQ;
+            case SVMParser.JS: return JS;
+            case SVMParser.LOADRA: return LOADRA;
+            case SVMParser.STORERA: return STORERA;
+            case SVMParser.LOADTM: return LOADTM;
+            case SVMParser.STORETM: return STORETM;
+            case SVMParser.LOADFP: return LOADFP;
+            case SVMParser.STOREFP: return STOREFP;
+            case SVMParser.COPYFP: return COPYFP;
+            case SVMParser.LOADHP: return LOADHP;
+            case SVMParser.STOREHP: return STOREHP;
+            case SVMParser.PRINT: return PRINT;
+            case SVMParser.HALT: return HALT;
+            case SVMParser.CALL: return CALL;
+            case SVMParser.RET: return RET;
+            case SVMParser.LOADVAR: return LOADVAR;
+            case SVMParser.LOADDISP: return LOADDISP;
+            case SVMParser.STOREDISP: return STOREDISP;
+            case SVMParser.DISPCALL: return DISPCALL;
+            case SVMParser.DISPLOADVAR: return DISPLOADVAR;
+            case SVMParser.TAILJS: return TAILJS;
+            default: return NOP; // like cpu(), unknown words are skipped
+        }
+    }
+
+    private int index(int address) {
+        int i = address >= 0 && address < addrToIndex.length ? addrToIndex[address] : -1;
+        if (i < 0) throw new SVMException("Invalid code address " + address);
+        return i;
+    }
+
+    public void cpu() {
+        try {
+            run();
+        } catch (ArrayIndexOutOfBoundsException e) { // lw/sw outside memory, or running past the last instruction
+            throw new SVMException("Invalid memory or code address (" + e.getMessage() + ")");
+        }
+    }
+
+    private void run() {
+        final int[] ops = this.ops, args = this.args, args2 = this.args2, addr = this.addr;
+        final int[] memory = this.memory;
+        final int[] display = new int[displaySize];
+        int pc = 0;
+        int sp = memory.length, fp = memory.length, hp = 0, ra = 0, tm = 0;
+        int v1, v2;
+        while (true) {
+            int i = pc++;
+            switch (ops[i]) {
+                case PUSH:
+                    if (sp - 1 <= hp) throw SVMException.stackOverflow(sp - 1, hp);
+                    memory[--sp] = args[i];
+                    break;
+                case POP:
+                    sp++;
+                    break;
+                case ADD:
+                    v1 = memory[sp++];
+                    memory[sp] = memory[sp] + v1;
+                    break;
+                case SUB:
+                    v1 = memory[sp++];
+                    memory[sp] = memory[sp] - v1;
+                    break;
+                case MULT:
+                    v1 = memory[sp++];
+                    memory[sp] = memory[sp] * v1;
+                    break;
+                case DIV:
+                    v1 = memory[sp++];
+                    memory[sp] = memory[sp] / v1;
+                    break;
+                case STOREW:
+                    v1 = memory[sp++];
+                    memory[v1] = memory[sp++];
+                    break;
+                case LOADW:
+                    memory[sp] = memory[memory[sp]];
+                    break;
+                case BRANCH:
+                    pc = args[i];
+                    break;
+                case BRANCHEQ:
+                    v1 = memory[sp++];
+                    v2 = memory[sp++];
+                    if (v2 == v1) pc = args[i];
+                    break;
+                case BRANCHLESSEQ:
+                    v1 = memory[sp++];
+                    v2 = memory[sp++];
+                    if (v2 <= v1) pc = args[i];
+                    break;
+                case JS:
+                    ra = addr[pc];
+                    pc = index(memory[sp++]);
+                    break;
+                case LOADRA:
+                    if (sp - 1 <= hp) throw SVMException.stackOverflow(sp - 1, hp);
+                    memory[--sp] = ra;
+                    break;
+                case STORERA:
+                    ra = memory[sp++];
+                    break;
+                case LOADTM:
+                    if (sp - 1 <= hp) throw SVMException.stackOverflow(sp - 1, hp);
+                    memory[--sp] = tm;
+                    break;
+                case STORETM:
+                    tm = memory[sp++];
+                    break;
+                case LOADFP:
+                    if (sp - 1 <= hp) throw SVMException.stackOverflow(sp - 1, hp);
+                    memory[--sp] = fp;
+                    break;
+                case STOREFP:
+                    fp = memory[sp++];
+                    break;
+                case COPYFP:
+                    fp = sp;
+                    break;
+                case LOADHP:
+                    if (sp - 1 <= hp) throw SVMException.stackOverflow(sp - 1, hp);
+                    memory[--sp] = hp;
+                    break;
+                case STOREHP:
+                    hp = memory[sp++];
+                    if (sp <= hp) throw SVMException.outOfMemory(hp, sp);
+                    break;
+                case PRINT:
+                    System.out.println((sp < memory.length) ? memory[sp] : "Empty stack!");
+                    break;
+                case HALT:
+                    return;
+                case CALL: // the frame args[i] access links away is pushed and kept in $tm
+                    v1 = fp;
+                    for (int k = args[i]; k > 0; k--) v1 = memory[v1];
+                    tm = v1;
+                    if (sp - 1 <= hp) throw SVMException.stackOverflow(sp - 1, hp);
+                    memory[--sp] = v1;
+                    ra = addr[pc];
+                    pc = index(memory[v1 + args2[i]]);
+                    break;
+                case LOADVAR: // slot args2[i] of the frame args[i] access links away
+                    v1 = fp;
+                    for (int k = args[i]; k > 0; k--) v1 = memory[v1];
+                    if (sp - 1 <= hp) throw SVMException.stackOverflow(sp - 1, hp);
+                    memory[--sp] = memory[v1 + args2[i]];
+                    break;
+                case RET: // the result replaces the control link, args[i] is the number of parameters
+                    tm = memory[sp];
+                    ra = memory[fp - 1];
+                    sp = fp + args[i] + 1;
+                    fp = memory[sp];
+                    memory[sp] = tm;
+                    pc = index(ra);
+                    break;
+                case TAILJS: // the args[i] words on top replace the frame of the caller, with args2[i] parameters
+                    v1 = memory[sp++];
+                    ra = memory[fp - 1];
+                    v2 = fp + args2[i] + 1 - args[i];
+                    System.arraycopy(memory, sp, memory, v2, args[i]);
+                    sp = v2;
+                    pc = index(v1);
+                    break;
+                case LOADDISP:
+                    if (sp - 1 <= hp) throw SVMException.stackOverflow(sp - 1, hp);
+                    memory[--sp] = display[args[i]];
+                    break;
+                case STOREDISP:
+                    display[args[i]] = memory[sp++];
+                    break;
+                case DISPCALL: // the display entry of level args[i]+1 is saved in the access link slot
+                    if (sp - 1 <= hp) throw SVMException.stackOverflow(sp - 1, hp);
+                    memory[--sp] = display[args[i] + 1];
+                    ra = addr[pc];
+                    pc = index(memory[display[args[i]] + args2[i]]);
+                    break;
+                case DISPLOADVAR: // slot args2[i] of the frame of level args[i]
+                    if (sp - 1 <= hp) throw SVMException.stackOverflow(sp - 1, hp);
+                    memory[--sp] = memory[display[args[i]] + args2[i]];
+                    break;
+            }
+        }
+    }
+
+}
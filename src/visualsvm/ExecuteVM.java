@@ -13,16 +13,21 @@ public class ExecuteVM {
 
     public static final int MEMSIZE = 10000;
     public static final int CODESIZE = 10000;
+    public static final int HISTORY = 100000; // default number of undo records (about as many steps) kept without re-executing
+    private static final int FRAME_MILLIS = 40; // min interval between two updates of the view (25 per second)
     private int[] code;
     private int[] memory;
 
+    private final int memSize; // dimensione della memoria (MEMSIZE se non specificata)
+
     private int ip = 0;
-    private int sp = MEMSIZE; // punta al top dello stack
+    private int sp; // punta al top dello stack
 
     private int tm;
     private int hp = 0;
     private int ra;
-    private int fp = MEMSIZE;
+    private int fp;
+    private final int[] display; // frame of each nesting level, with the display calling convention
     private final List<CodeLine> codeLines = new ArrayList<>();
     private final JFrame frame;
     private final JPanel mainPanel;
@@ -34,6 +39,7 @@ public class ExecuteVM {
     private final JButton reset;
     private final JButton nextStep;
     private final JButton play;
+    private final JButton pause;
     private final JPanel registerPanel;
     private final JSplitPane memPanel;
     private final JLabel tmLabel, raLabel, fpLabel, ipLabel, spLabel, hpLabel;
@@ -47,12 +53,44 @@ public class ExecuteVM {
     private List<String> source;
     private int debugLineCode = 0;
 
+    private final UndoLog history;
+    private final int[] undoRecord = UndoLog.newRecord();
+    private int executed = 0; // steps executed since the last reset, including the one that halted
+
+    private final MemoryModel memoryModel = new MemoryModel();
+    private int dirtyFrom = 0, dirtyTo; // memory words written since the last update of the view
+    private long lastUpdate;
+    private final javax.swing.Timer updateTimer;
+
+    private final StringBuilder output = new StringBuilder(); // printed by the program
+    private int keptOutput = 0; // length of the output already shown that is still valid
+
+    private Player player;                  // running PLAY, null otherwise
+    private volatile boolean pauseRequested;
+    private long budget = 0;                // max instructions executed by one PLAY (0: no limit)
+
     public ExecuteVM(int[] code, int[] sourceMap, List<String> source) {
+        this(code, sourceMap, source, MEMSIZE);
+    }
+
+    public ExecuteVM(int[] code, int[] sourceMap, List<String> source, int memSize) {
+        this(code, sourceMap, source, memSize, HISTORY);
+    }
+
+    // historySize: number of most recent records kept in the undo log (9 words each, one per step
+    // and one per further word moved by a tail call), stepping further back re-executes the
+    // program from the start
+    public ExecuteVM(int[] code, int[] sourceMap, List<String> source, int memSize, int historySize) {
         boolean printArgumentLineNumber = false;
         this.code = code;
         this.sourceMap = sourceMap;
         this.source = source;
-        this.memory = new int[MEMSIZE];
+        this.memSize = memSize;
+        this.history = new UndoLog(historySize);
+        this.memory = new int[memSize];
+        this.sp = memSize;
+        this.fp = memSize;
+        this.display = new int[displayLevels(code)];
 
         this.frame = new JFrame("FOOL Virtual Machine");
         this.mainPanel = new JPanel();
@@ -61,6 +99,9 @@ public class ExecuteVM {
         this.buttonPanel.setLayout(new BoxLayout(this.buttonPanel, BoxLayout.Y_AXIS));
         this.play = new JButton("PLAY");
         this.play.addActionListener(e -> this.playButtonHandler());
+        this.pause = new JButton("PAUSE");
+        this.pause.addActionListener(e -> this.pauseButtonHandler());
+        this.pause.setEnabled(false);
         this.reset = new JButton("RESET");
         this.reset.addActionListener(e -> this.resetButtonHandler());
         this.backToBreakPoint = new JButton("BACK TO BREAK POINT");
@@ -70,6 +111,7 @@ public class ExecuteVM {
         this.nextStep = new JButton("STEP");
         this.nextStep.addActionListener(e -> this.stepButtonHandler());
         this.buttonPanel.add(this.play);
+        this.buttonPanel.add(this.pause);
         this.buttonPanel.add(this.nextStep);
         this.buttonPanel.add(this.reset);
         this.buttonPanel.add(this.backToBreakPoint);
@@ -122,7 +164,7 @@ public class ExecuteVM {
                     codeLines.add(CodeLine.lineWithBreakpoint(String.format("%5d: %s   | %5d: %s", realIp++, macro[0], realIp++, macro[1])));
                 } else {
                     codeLines.add(CodeLine.lineWithBreakpoint(String.format("%5d: %s", realIp++, line)));
-                    realIp++;
+                    realIp += macro.length - 1; // operands (two for call)
                 }
             } else {
                 codeLines.add(CodeLine.lineWithBreakpoint(String.format("%5d: %s", realIp++, line)));
@@ -157,13 +199,20 @@ public class ExecuteVM {
         this.asmScroll.setBorder(BorderFactory.createTitledBorder("CODE"));
         this.mainPanel.add(this.asmScroll, BorderLayout.EAST);
 
-        this.stackList = new JList<>();
+        this.stackList = new JList<>(this.memoryModel);
         removeListenersFrom(this.stackList);
-        this.heapList = new JList<>();
+        this.heapList = new JList<>(this.memoryModel);
         removeListenersFrom(this.heapList);
 
         this.stackList.setFont(new Font(Font.MONOSPACED, Font.BOLD, 16));
         this.heapList.setFont(new Font(Font.MONOSPACED, Font.BOLD, 16));
+        // fixed size rows: the lists never need to format all the memory words to lay them out
+        final String prototype = String.format("%5d: %s", memSize, Integer.MIN_VALUE);
+        this.stackList.setPrototypeCellValue(prototype);
+        this.heapList.setPrototypeCellValue(prototype);
+        this.dirtyTo = memSize;
+        this.updateTimer = new javax.swing.Timer(FRAME_MILLIS, e -> this.update());
+        this.updateTimer.setRepeats(false);
         this.stackScroll = new JScrollPane(this.stackList, JScrollPane.VERTICAL_SCROLLBAR_AS_NEEDED,
                 JScrollPane.HORIZONTAL_SCROLLBAR_NEVER);
         this.stackScroll.setBorder(BorderFactory.createTitledBorder("STACK"));
@@ -180,7 +229,7 @@ public class ExecuteVM {
         this.outputScroll = new JScrollPane(this.outputText, JScrollPane.VERTICAL_SCROLLBAR_AS_NEEDED,
                 JScrollPane.HORIZONTAL_SCROLLBAR_AS_NEEDED);
 
-        setMem();
+        setMem(this.snapshot()); // initial selection of $sp and $hp
         this.frame.getContentPane().setLayout(new BorderLayout());
         this.frame.add(mainPanel, BorderLayout.CENTER);
         this.frame.add(buttonPanel, BorderLayout.EAST);
@@ -217,16 +266,55 @@ public class ExecuteVM {
     }
 
     private void reset() {
-        this.memory = new int[MEMSIZE];
+        this.memory = new int[memSize];
         this.tm = 0;
         this.ra = 0;
-        this.fp = MEMSIZE;
+        this.fp = memSize;
+        Arrays.fill(this.display, 0);
         this.ip = 0;
-        this.sp = MEMSIZE;
+        this.sp = memSize;
         this.hp = 0;
         this.nextStep.setEnabled(true);
         this.play.setEnabled(true);
-        this.outputText.setText("");
+        this.output.setLength(0);
+        this.keptOutput = 0;
+        this.changed(0, memSize);
+        this.history.clear();
+        this.executed = 0;
+    }
+
+    // brings the machine to the state after target steps, undoing the last ones if they are
+    // in the undo log (in time proportional to their number), re-executing from the start otherwise
+    private void goTo(int target) {
+        if (this.executed - target > this.history.size()) {
+            this.reset();
+        }
+        while (this.executed < target) this.step();
+        while (this.executed > target) this.undo();
+    }
+
+    private void undo() {
+        final int[] r = this.undoRecord;
+        do {
+            this.history.undo(r);
+            if (r[UndoLog.ADDRESS] >= 0) {
+                this.memory[r[UndoLog.ADDRESS]] = r[UndoLog.OLD_VALUE];
+                this.changed(r[UndoLog.ADDRESS], r[UndoLog.ADDRESS]);
+            } else if (r[UndoLog.ADDRESS] != UndoLog.NONE) {
+                this.display[UndoLog.displayLevel(r[UndoLog.ADDRESS])] = r[UndoLog.OLD_VALUE];
+            }
+        } while (r[UndoLog.IP] == UndoLog.CONTINUED);
+        this.ip = r[UndoLog.IP];
+        this.sp = r[UndoLog.SP];
+        this.fp = r[UndoLog.FP];
+        this.hp = r[UndoLog.HP];
+        this.ra = r[UndoLog.RA];
+        this.tm = r[UndoLog.TM];
+        this.output.setLength(r[UndoLog.OUTPUT]);
+        this.keptOutput = Math.min(this.keptOutput, this.output.length());
+        this.executed--;
+        this.nextStep.setEnabled(true);
+        this.play.setEnabled(true);
     }
 
     private void resetButtonHandler() {
@@ -236,44 +324,39 @@ public class ExecuteVM {
     }
 
     private void backToBreakPointButtonHandler() {
-        this.reset();
-        int nearlestBreakpoint = 0;
-        int tempBreakpoint = 0;
-        while (this.step()) {
-            tempBreakpoint++;
+        // nearest previous step stopping on a breakpoint, walking back through the undo log
+        int nearlestBreakpoint = this.debugLineCode - 1;
+        for (; nearlestBreakpoint > 0 && this.executed - nearlestBreakpoint <= this.history.size(); nearlestBreakpoint--) {
+            this.goTo(nearlestBreakpoint);
             if (lineHasBreakpoint()) {
-                nearlestBreakpoint = tempBreakpoint;
-            }
-
-            if (tempBreakpoint + 1  == this.debugLineCode) {
                 break;
             }
         }
-        this.debugLineCode = nearlestBreakpoint+1;
-        this.backStepButtonHandler();
-
+        if (nearlestBreakpoint > 0 && this.executed != nearlestBreakpoint) {
+            // not found in the undo log: look for it re-executing from the start
+            int limit = nearlestBreakpoint;
+            nearlestBreakpoint = 0;
+            this.reset();
+            while (this.executed < limit) {
+                this.step();
+                if (lineHasBreakpoint()) {
+                    nearlestBreakpoint = this.executed;
+                }
+            }
+        }
+        this.debugLineCode = nearlestBreakpoint;
+        this.goTo(nearlestBreakpoint);
+        this.update();
     }
 
     private void backStepButtonHandler() {
-        this.reset();
         if (this.debugLineCode < 2) {
             this.debugLineCode = 0;
-            this.update();
         } else {
             this.debugLineCode--;
-            int tempBreakpoint = 0;
-            while (this.step()) {
-                tempBreakpoint++;
-                if (tempBreakpoint == this.debugLineCode) {
-                    this.update();
-                    return;
-                }
-            }
-            this.nextStep.setEnabled(false);
-            this.play.setEnabled(false);
-            ip--;
-            this.update();
         }
+        this.goTo(this.debugLineCode);
+        this.requestUpdate();
     }
 
     private <E> void removeListenersFrom(JList<E> list) {
@@ -287,9 +370,10 @@ public class ExecuteVM {
 
     private void checkKeyboardCommand() {
         if (this.keyboardCommand.endsWith(" ")) {
-            this.stepButtonHandler();
+            if (this.nextStep.isEnabled()) this.stepButtonHandler();
         } else if (this.keyboardCommand.endsWith("\n")) {
-            this.playButtonHandler();
+            if (this.player != null) this.pauseButtonHandler();
+            else if (this.play.isEnabled()) this.playButtonHandler();
         } else if (this.keyboardCommand.endsWith("fra")) {
             this.play.setEnabled(false);
         } else if (this.keyboardCommand.endsWith("tranqui")) {
@@ -300,7 +384,7 @@ public class ExecuteVM {
         this.keyboardCommand = "";
     }
 
-    private void setMem() {
+    private void setMem(Snapshot s) {
         // Codice per non visualizzare 0 in memoria
 //        this.stackList.setListData(new Vector<>(
 //                IntStream.range(0, MEMSIZE).mapToObj(x -> String.format("%5d: %s", x, x <= hp || x >= sp ? this.memory[x] : ""))
@@ -308,68 +392,161 @@ public class ExecuteVM {
 //        this.heapList.setListData(new Vector<>(
 //                IntStream.range(0, MEMSIZE).mapToObj(x -> String.format("%5d: %s", x, x <= hp || x >= sp ? this.memory[x] : ""))
 //                        .collect(Collectors.toList())));
-        final var mem = IntStream.range(0, MEMSIZE)
-                .mapToObj(x -> String.format("%5d: %s", x, this.memory[x]))
-                .collect(Collectors.toCollection(ArrayList::new));
-        mem.add(String.valueOf(MEMSIZE));
-
-        var memory = new Vector<>(mem);
+        if (s.dirtyFrom <= s.dirtyTo) {
+            this.memoryModel.changed(s.dirtyFrom, s.dirtyTo);
+        }
 
-        this.stackList.setListData(memory);
         this.stackList.clearSelection();
-        this.stackList.setSelectedIndex(this.sp);
+        this.stackList.setSelectedIndex(s.sp);
         this.stackScroll.getVerticalScrollBar()
-                .setValue(computeScrollDestination(this.stackScroll.getVerticalScrollBar(), this.sp));
+                .setValue(computeScrollDestination(this.stackScroll.getVerticalScrollBar(), s.sp));
 
-        this.heapList.setListData(memory);
         this.heapList.clearSelection();
-        this.heapList.setSelectedIndex(this.hp);
+        this.heapList.setSelectedIndex(s.hp);
         this.heapScroll.getVerticalScrollBar()
-                .setValue(computeScrollDestination(this.heapScroll.getVerticalScrollBar(), this.hp));
+                .setValue(computeScrollDestination(this.heapScroll.getVerticalScrollBar(), s.hp));
     }
 
     private int computeScrollDestination(JScrollBar scroll, int pointer) {
         return Math.max(
-                pointer * (scroll.getMaximum() / MEMSIZE) - scroll.getHeight() / 2,
+                pointer * (scroll.getMaximum() / memSize) - scroll.getHeight() / 2,
                 0
         );
     }
 
+    // memory words from..to have been written and must be redrawn at the next update
+    private void changed(int from, int to) {
+        this.dirtyFrom = Math.min(this.dirtyFrom, from);
+        this.dirtyTo = Math.max(this.dirtyTo, to);
+    }
+
+    // updates the view at most once per frame: requests arriving sooner (e.g. holding down the
+    // step key) are coalesced into a single update at the end of the frame
+    private void requestUpdate() {
+        if (System.currentTimeMillis() - this.lastUpdate >= FRAME_MILLIS) {
+            this.update();
+        } else if (!this.updateTimer.isRunning()) {
+            this.updateTimer.start();
+        }
+    }
+
     private void update() {
-        this.raLabel.setText("RA: " + this.ra);
-        this.fpLabel.setText("FP: " + this.fp);
-        this.tmLabel.setText("TM: " + this.tm);
-        this.ipLabel.setText("IP: " + this.ip);
-        this.hpLabel.setText("HP: " + this.hp);
-        this.spLabel.setText("SP: " + this.sp);
+        this.show(this.snapshot());
+    }
+
+    // state to be shown, taken by the thread running the machine: it includes the memory words
+    // written and the output printed since the previous snapshot
+    private Snapshot snapshot() {
+        final Snapshot s = new Snapshot(this.ip, this.sp, this.fp, this.hp, this.ra, this.tm,
+                this.dirtyFrom, this.dirtyTo, this.keptOutput, this.output.substring(this.keptOutput));
+        this.dirtyFrom = Integer.MAX_VALUE;
+        this.dirtyTo = -1;
+        this.keptOutput = this.output.length();
+        return s;
+    }
+
+    private void show(Snapshot s) {
+        this.updateTimer.stop();
+        this.lastUpdate = System.currentTimeMillis();
+        this.raLabel.setText("RA: " + s.ra);
+        this.fpLabel.setText("FP: " + s.fp);
+        this.tmLabel.setText("TM: " + s.tm);
+        this.ipLabel.setText("IP: " + s.ip);
+        this.hpLabel.setText("HP: " + s.hp);
+        this.spLabel.setText("SP: " + s.sp);
         this.asmList.clearSelection();
-        this.asmList.setSelectedIndex(this.sourceMap[this.ip]);
-        final JScrollBar s = this.asmScroll.getVerticalScrollBar();
-        int dest = this.sourceMap[this.ip] * s.getMaximum() / this.codeLineCount - s.getHeight() / 2;
-        s.setValue(Math.max(dest, 0));
-        setMem();
-        var condToDisableButton = this.ip != 0;
+        this.asmList.setSelectedIndex(this.sourceMap[s.ip]);
+        final JScrollBar scroll = this.asmScroll.getVerticalScrollBar();
+        int dest = this.sourceMap[s.ip] * scroll.getMaximum() / this.codeLineCount - scroll.getHeight() / 2;
+        scroll.setValue(Math.max(dest, 0));
+        setMem(s);
+        this.outputText.replaceRange(s.newOutput, s.keptOutput, this.outputText.getDocument().getLength());
+        var condToDisableButton = s.ip != 0 && this.player == null;
         this.reset.setEnabled(condToDisableButton);
         this.backStep.setEnabled(condToDisableButton);
         this.backToBreakPoint.setEnabled(condToDisableButton);
     }
 
+    // max number of instructions executed by a single PLAY, after which it pauses (0: no limit)
+    public ExecuteVM withInstructionBudget(long budget) {
+        this.budget = budget;
+        return this;
+    }
+
     public void cpu() {
         this.frame.setVisible(true);
     }
 
+    // the program runs on a background thread, until a breakpoint, HALT, PAUSE or the end of the
+    // instruction budget; meanwhile the other buttons are disabled and the view is updated once per frame
     private void playButtonHandler() {
-        while (this.step()) {
-            debugLineCode++;
-            if (lineHasBreakpoint()) {
-                this.update();
-                return;
+        this.updateTimer.stop(); // the state belongs to the player until it is done
+        this.pauseRequested = false;
+        this.player = new Player();
+        this.play.setEnabled(false);
+        this.nextStep.setEnabled(false);
+        this.reset.setEnabled(false);
+        this.backStep.setEnabled(false);
+        this.backToBreakPoint.setEnabled(false);
+        this.pause.setEnabled(true);
+        this.player.execute();
+    }
+
+    private void pauseButtonHandler() {
+        this.pauseRequested = true;
+    }
+
+    private final class Player extends SwingWorker<Boolean, Snapshot> {
+
+        @Override
+        protected Boolean doInBackground() { // true if the program can continue
+            long frame = System.currentTimeMillis();
+            for (long n = 1; !pauseRequested; n++) {
+                if (!step()) {
+                    return false;
+                }
+                debugLineCode++;
+                if (lineHasBreakpoint()) {
+                    return true;
+                }
+                if (n == budget) {
+                    print("Instruction budget of " + budget + " exhausted, paused");
+                    return true;
+                }
+                if ((n & 1023) == 0 && System.currentTimeMillis() - frame >= FRAME_MILLIS) {
+                    publish(snapshot());
+                    frame = System.currentTimeMillis();
+                }
             }
+            return true;
+        }
+
+        @Override
+        protected void process(List<Snapshot> snapshots) {
+            Snapshot s = snapshots.get(0);
+            for (int i = 1; i < snapshots.size(); i++) {
+                s = snapshots.get(i).after(s);
+            }
+            show(s);
+        }
+
+        @Override
+        protected void done() {
+            final boolean running;
+            try {
+                running = get();
+            } catch (InterruptedException | java.util.concurrent.ExecutionException e) {
+                throw new RuntimeException(e.getCause() != null ? e.getCause() : e);
+            }
+            player = null;
+            pause.setEnabled(false);
+            nextStep.setEnabled(running);
+            play.setEnabled(running);
+            if (!running) {
+                ip--;
+            }
+            update();
         }
-        this.nextStep.setEnabled(false);
-        this.play.setEnabled(false);
-        ip--;
-        this.update();
     }
 
     private boolean lineHasBreakpoint() {
@@ -392,12 +569,36 @@ public class ExecuteVM {
             this.play.setEnabled(false);
         } else {
             this.debugLineCode++;
-            this.update();
+            this.requestUpdate();
         }
     }
 
     private boolean step() {
+        this.history.begin(ip, sp, fp, hp, ra, tm, this.output.length());
+        this.executed++;
         int bytecode = fetch();
+        try {
+            execute(bytecode);
+        } catch (ArrayIndexOutOfBoundsException e) { // lw/sw/js fuori da memoria o codice
+            return fault("Invalid memory address");
+        }
+        if (bytecode == SVMParser.HALT) return false;
+        if (this.sp <= this.hp) // stack e heap si sono incontrati
+            return fault(bytecode == SVMParser.STOREHP ? "Out of memory" : "Stack overflow");
+        return true;
+    }
+
+    private boolean fault(String error) {
+        print("Segmentation fault: " + error);
+        return false;
+    }
+
+    private void print(String line) {
+        System.out.println(line);
+        this.output.append(line).append('\n');
+    }
+
+    private void execute(int bytecode) {
         int v1, v2;
         int address;
         switch (bytecode) {
@@ -430,7 +631,8 @@ public class ExecuteVM {
                 break;
             case SVMParser.STOREW:
                 address = pop();
-                memory[address] = pop();
+                v1 = pop();
+                write(address, v1);
                 break;
             case SVMParser.LOADW:
                 push(memory[pop()]);
@@ -483,19 +685,69 @@ public class ExecuteVM {
                 hp = pop();
                 break;
             case SVMParser.PRINT:
-                final String output = sp == MEMSIZE ? "EMPTY STACK" : Integer.toString(memory[sp]);
-                System.out.println(output);
-                this.outputText.append(output + "\n");
+                print(sp == memSize ? "EMPTY STACK" : Integer.toString(memory[sp]));
                 break;
             case SVMParser.HALT:
-                return false;
-        }
-        if (this.sp <= this.hp) {
-            System.out.println("Segmentation fault");
-            this.outputText.append("Segmentation fault\n");
-            return false;
+                break;
+            case SVMParser.CALL: // lfp, v1 times lw, stm, ltm, ltm, push v2, add, lw, js
+                v1 = fetch();
+                v2 = fetch();
+                address = fp;
+                for (int k = 0; k < v1; k++) address = memory[address];
+                tm = address;
+                push(address);
+                ra = ip;
+                ip = memory[address + v2];
+                break;
+            case SVMParser.LOADVAR: // lfp, v1 times lw, push v2, add, lw
+                v1 = fetch();
+                v2 = fetch();
+                address = fp;
+                for (int k = 0; k < v1; k++) address = memory[address];
+                push(memory[address + v2]);
+                break;
+            case SVMParser.RET: // stm, pops, sra, pop, pops, sfp, ltm, lra, js with v1 parameters
+                v1 = fetch();
+                tm = pop();
+                ra = memory[fp - 1];
+                address = fp + v1 + 1; // control link
+                fp = memory[address];
+                sp = address + 1;
+                push(tm);
+                ip = ra;
+                break;
+            case SVMParser.TAILJS: // the caller frame (v2 parameters) is replaced by the v1 words on top
+                v1 = fetch();
+                v2 = fetch();
+                address = pop();
+                ra = memory[fp - 1];
+                int to = fp + v2 + 1 - v1; // the control link stays in place
+                for (int k = v1 - 1; k >= 0; k--) write(to + k, memory[sp + k]); // to >= sp: from the top
+                sp = to;
+                ip = address;
+                break;
+            case SVMParser.LOADDISP:
+                v1 = fetch();
+                push(display[v1]);
+                break;
+            case SVMParser.STOREDISP:
+                v1 = fetch();
+                history.write(UndoLog.displayAddress(v1), display[v1]);
+                display[v1] = pop();
+                break;
+            case SVMParser.DISPCALL: // ldisp v1+1, ldisp v1, push v2, add, lw, js
+                v1 = fetch();
+                v2 = fetch();
+                push(display[v1 + 1]);
+                ra = ip;
+                ip = memory[display[v1] + v2];
+                break;
+            case SVMParser.DISPLOADVAR: // ldisp v1, push v2, add, lw
+                v1 = fetch();
+                v2 = fetch();
+                push(memory[display[v1] + v2]);
+                break;
         }
-        return true;
     }
 
     private int pop() {
@@ -503,13 +755,97 @@ public class ExecuteVM {
     }
 
     private void push(int v) {
-        memory[--sp] = v;
+        write(sp - 1, v);
+        sp--;
+    }
+
+    // every write to memory goes through here, to be undoable and shown by the next update
+    private void write(int address, int v) {
+        history.write(address, memory[address]);
+        memory[address] = v;
+        changed(address, address);
+    }
+
+    // rows of the memory views, formatted only when they are painted
+    private class MemoryModel extends AbstractListModel<String> {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public int getSize() {
+            return memSize + 1;
+        }
+
+        @Override
+        public String getElementAt(int x) {
+            return x == memSize ? String.valueOf(memSize) : String.format("%5d: %s", x, memory[x]);
+        }
+
+        void changed(int from, int to) {
+            fireContentsChanged(this, from, to);
+        }
+    }
+
+    // registers, memory words written and output printed since the previous snapshot
+    private static final class Snapshot {
+        final int ip, sp, fp, hp, ra, tm;
+        final int dirtyFrom, dirtyTo;
+        final int keptOutput;   // length of the previously shown output that is still valid
+        final String newOutput; // printed after it
+
+        Snapshot(int ip, int sp, int fp, int hp, int ra, int tm, int dirtyFrom, int dirtyTo,
+                 int keptOutput, String newOutput) {
+            this.ip = ip;
+            this.sp = sp;
+            this.fp = fp;
+            this.hp = hp;
+            this.ra = ra;
+            this.tm = tm;
+            this.dirtyFrom = dirtyFrom;
+            this.dirtyTo = dirtyTo;
+            this.keptOutput = keptOutput;
+            this.newOutput = newOutput;
+        }
+
+        // this snapshot merged with the previous one, not shown yet
+        Snapshot after(Snapshot previous) {
+            int kept = Math.min(previous.keptOutput, this.keptOutput);
+            String output = this.keptOutput < previous.keptOutput ? this.newOutput
+                    : previous.newOutput.substring(0, Math.min(previous.newOutput.length(),
+                            this.keptOutput - previous.keptOutput)) + this.newOutput;
+            return new Snapshot(ip, sp, fp, hp, ra, tm, Math.min(dirtyFrom, previous.dirtyFrom),
+                    Math.max(dirtyTo, previous.dirtyTo), kept, output);
+        }
     }
 
     private int fetch() {
         return code[ip++];
     }
 
+    // nesting levels used by the display instructions, as svm.ExecuteVM: a level that was never
+    // stored reads 0 (a negative level is an invalid memory address when executed)
+    private static int displayLevels(int[] code) {
+        int levels = 0;
+        for (int ip = 0; ip < code.length; ) {
+            int bytecode = code[ip++];
+            int operands = 0;
+            switch (bytecode) {
+                case SVMParser.PUSH: case SVMParser.BRANCH: case SVMParser.BRANCHEQ: case SVMParser.BRANCHLESSEQ:
+                case SVMParser.RET: case SVMParser.LOADDISP: case SVMParser.STOREDISP:
+                    operands = 1;
+                    break;
+                case SVMParser.CALL: case SVMParser.LOADVAR: case SVMParser.DISPCALL: case SVMParser.DISPLOADVAR:
+                case SVMParser.TAILJS:
+                    operands = 2;
+                    break;
+            }
+            if ((bytecode == SVMParser.LOADDISP || bytecode == SVMParser.STOREDISP || bytecode == SVMParser.DISPCALL
+                    || bytecode == SVMParser.DISPLOADVAR) && ip < code.length)
+                levels = Math.max(levels, bytecode == SVMParser.DISPCALL ? code[ip] + 2 : code[ip] + 1);
+            ip += operands;
+        }
+        return levels;
+    }
+
 }
 
 /**
@@ -56,6 +56,14 @@ instruction:
 	  | t=STOREHP              { codem($t.line, STOREHP); } //pop the top of the stack and copy it in the HP register
 	  | t=PRINT                { codem($t.line, PRINT); } //visualize the top of the stack without removing it
 	  | t=HALT                 { codem($t.line, HALT); } //terminate the execution
+	  | t=CALL d=INTEGER o=INTEGER { codem($t.line, CALL, Integer.parseInt($d.text), Integer.parseInt($o.text)); } //push the frame reached following d access links from FP, copy it in TM, and call the function whose address is at offset o in it
+	  | t=LOADVAR d=INTEGER o=INTEGER { codem($t.line, LOADVAR, Integer.parseInt($d.text), Integer.parseInt($o.text)); } //push the content of the memory cell at offset o in the frame reached following d access links from FP
+	  | t=RET n=INTEGER        { codem($t.line, RET, Integer.parseInt($n.text)); } //return from a function with n parameters: pop the result, restore RA and FP from the frame, remove it and push the result
+	  | t=LOADDISP l=INTEGER   { codem($t.line, LOADDISP, Integer.parseInt($l.text)); } //push the frame pointer of nesting level l kept in the display
+	  | t=STOREDISP l=INTEGER  { codem($t.line, STOREDISP, Integer.parseInt($l.text)); } //pop the top of the stack and copy it in the display as frame pointer of nesting level l
+	  | t=DISPCALL l=INTEGER o=INTEGER { codem($t.line, DISPCALL, Integer.parseInt($l.text), Integer.parseInt($o.text)); } //push the display entry of level l+1 (saved by the callee), and call the function whose address is at offset o in the frame of level l
+	  | t=DISPLOADVAR l=INTEGER o=INTEGER { codem($t.line, DISPLOADVAR, Integer.parseInt($l.text), Integer.parseInt($o.text)); } //push the content of the memory cell at offset o in the frame of level l kept in the display
+	  | t=TAILJS k=INTEGER n=INTEGER { codem($t.line, TAILJS, Integer.parseInt($k.text), Integer.parseInt($n.text)); } //tail call: pop an address, move the k words on top of the stack over the frame of a function with n parameters (keeping its control link), restore RA from the frame and jump to the address
 	  ;
 
 /*------------------------------------------------------------------
@@ -85,6 +93,14 @@ LOADHP	 	: 'lhp' ;
 STOREHP	 	: 'shp' ;
 PRINT	 	: 'print' ;
 HALT	 	: 'halt' ;
+CALL	 	: 'call' ;
+RET	 	: 'ret' ;
+LOADVAR	 	: 'lv' ;
+LOADDISP 	: 'ldisp' ;
+STOREDISP	: 'sdisp' ;
+DISPCALL 	: 'dcall' ;
+DISPLOADVAR	: 'dlv' ;
+TAILJS	 	: 'tjs' ;
 
 COL	 		: ':' ;
 LABEL	 	: ('a'..'z'|'A'..'Z')('a'..'z' | 'A'..'Z' | '0'..'9')* ;
@@ -0,0 +1,121 @@
+package visualsvm;
+
+import java.util.Arrays;
+
+/**
+ * Bounded undo log of the steps executed by the visual VM.
+ *
+ * An SVM instruction (except TJS) changes the registers and at most one word of memory, so
+ * each step is undone by a fixed size record: the registers before the step, the address and
+ * previous value of the word written (if any, a display entry being encoded as a negative
+ * address) and the length of the output text. A tail call (TJS), which moves several words,
+ * adds a continuation record (IP == CONTINUED) for each word after the first one. Records are
+ * kept in a ring buffer holding the last {@code capacity} records; the oldest steps are dropped
+ * with all their records. A step with more words than the whole log clears it.
+ */
+class UndoLog {
+
+    static final int IP = 0, SP = 1, FP = 2, HP = 3, RA = 4, TM = 5, ADDRESS = 6, OLD_VALUE = 7, OUTPUT = 8;
+    private static final int RECORD = 9;
+    static final int NONE = -1; // ADDRESS of the steps that write nothing
+    static final int CONTINUED = -1; // IP of the records of the further words written by a step
+
+    // ADDRESS of the display entry of nesting level l, and back
+    static int displayAddress(int l) {
+        return -2 - l;
+    }
+
+    static int displayLevel(int address) {
+        return -2 - address;
+    }
+
+    private final int capacity;   // max number of records
+    private int[] log = new int[0];
+    private int first = 0;        // index of the oldest record
+    private int size = 0;         // records
+    private int steps = 0;        // records that start a step
+
+    UndoLog(int capacity) {
+        this.capacity = capacity;
+    }
+
+    // number of steps that can be undone
+    int size() {
+        return steps;
+    }
+
+    void clear() {
+        first = size = steps = 0;
+    }
+
+    // starts the record of a new step, with the registers before it and no memory written
+    void begin(int ip, int sp, int fp, int hp, int ra, int tm, int output) {
+        if (capacity == 0) return;
+        int r = add() * RECORD;
+        steps++;
+        log[r + IP] = ip;
+        log[r + SP] = sp;
+        log[r + FP] = fp;
+        log[r + HP] = hp;
+        log[r + RA] = ra;
+        log[r + TM] = tm;
+        log[r + ADDRESS] = NONE;
+        log[r + OUTPUT] = output;
+    }
+
+    // records the word of memory the current step is about to overwrite
+    void write(int address, int oldValue) {
+        if (size == 0) return;
+        int r = last() * RECORD;
+        if (log[r + ADDRESS] != NONE) { // a further word of the step
+            if (size == capacity && steps == 1) { // the step does not fit: it cannot be undone
+                clear();
+                return;
+            }
+            r = add() * RECORD;
+            log[r + IP] = CONTINUED;
+        }
+        log[r + ADDRESS] = address;
+        log[r + OLD_VALUE] = oldValue;
+    }
+
+    // removes the last record, copying it into record: the step is undone when its first
+    // record (IP != CONTINUED) is removed, the words being restored in reverse order
+    void undo(int[] record) {
+        System.arraycopy(log, last() * RECORD, record, 0, RECORD);
+        size--;
+        if (record[IP] != CONTINUED) steps--;
+    }
+
+    static int[] newRecord() {
+        return new int[RECORD];
+    }
+
+    // index of a new last record, overwriting the oldest step if the log is full
+    private int add() {
+        if (size == log.length / RECORD && size < capacity) grow();
+        if (size < capacity) return (first + size++) % (log.length / RECORD);
+        int r = first;
+        first = (first + 1) % capacity;
+        steps--;
+        while (log[first * RECORD + IP] == CONTINUED) { // the rest of the dropped step
+            first = (first + 1) % capacity;
+            size--;
+        }
+        return r;
+    }
+
+    private int last() {
+        return (first + size - 1) % (log.length / RECORD);
+    }
+
+    // the buffer grows by doubling up to capacity records (it is never full while growing)
+    private void grow() {
+        int records = log.length / RECORD;
+        int[] bigger = new int[Math.min(Math.max(records * 2, 1024), capacity) * RECORD];
+        for (int i = 0; i < size; i++)
+            System.arraycopy(log, ((first + i) % records) * RECORD, bigger, i * RECORD, RECORD);
+        log = bigger;
+        first = 0;
+    }
+}